@@ -0,0 +1,40 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stand-in for the Android bluetooth socket on a plain JVM.
+ */
+public final class BluetoothSocket {
+	public void connect() throws IOException {
+		throw new IOException("no bluetooth on this platform");
+	}
+
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("not connected");
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("not connected");
+	}
+
+	public void close() throws IOException {
+	}
+}
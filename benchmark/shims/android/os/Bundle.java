@@ -0,0 +1,89 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the Android bundle on a plain JVM, a map of named values.
+ */
+public final class Bundle {
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	public void putInt(String key, int value) {
+		values.put(key, value);
+	}
+
+	public int getInt(String key) {
+		Object value = values.get(key);
+		return value instanceof Integer ? (Integer) value : 0;
+	}
+
+	public void putByte(String key, byte value) {
+		values.put(key, value);
+	}
+
+	public byte getByte(String key) {
+		Object value = values.get(key);
+		return value instanceof Byte ? (Byte) value : 0;
+	}
+
+	public void putShort(String key, short value) {
+		values.put(key, value);
+	}
+
+	public short getShort(String key) {
+		Object value = values.get(key);
+		return value instanceof Short ? (Short) value : 0;
+	}
+
+	public void putLong(String key, long value) {
+		values.put(key, value);
+	}
+
+	public long getLong(String key) {
+		Object value = values.get(key);
+		return value instanceof Long ? (Long) value : 0;
+	}
+
+	public void putBoolean(String key, boolean value) {
+		values.put(key, value);
+	}
+
+	public boolean getBoolean(String key) {
+		Object value = values.get(key);
+		return value instanceof Boolean ? (Boolean) value : false;
+	}
+
+	public void putString(String key, String value) {
+		values.put(key, value);
+	}
+
+	public String getString(String key) {
+		Object value = values.get(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	public void putByteArray(String key, byte[] value) {
+		values.put(key, value);
+	}
+
+	public byte[] getByteArray(String key) {
+		Object value = values.get(key);
+		return value instanceof byte[] ? (byte[]) value : null;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the Android handler on a plain JVM. Messages are handled
+ * synchronously on the calling thread, delayed runnables on a shared daemon
+ * thread.
+ */
+public class Handler {
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Handler shim");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	public interface Callback {
+		boolean handleMessage(Message msg);
+	}
+
+	private final Callback callback;
+
+	public Handler() {
+		this(null);
+	}
+
+	public Handler(Callback callback) {
+		this.callback = callback;
+	}
+
+	public void handleMessage(Message msg) {
+	}
+
+	public void dispatchMessage(Message msg) {
+		if (callback == null || !callback.handleMessage(msg)) {
+			handleMessage(msg);
+		}
+	}
+
+	public final Message obtainMessage() {
+		return Message.obtain(this);
+	}
+
+	public final boolean sendMessage(Message msg) {
+		dispatchMessage(msg);
+		return true;
+	}
+
+	public final boolean post(Runnable r) {
+		r.run();
+		return true;
+	}
+
+	public final boolean postDelayed(Runnable r, long delayMillis) {
+		TIMER.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+		return true;
+	}
+}
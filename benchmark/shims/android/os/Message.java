@@ -0,0 +1,46 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Stand-in for the Android message on a plain JVM.
+ */
+public final class Message {
+	public int what;
+	public int arg1;
+	public int arg2;
+	public Object obj;
+	private Bundle data;
+
+	public static Message obtain() {
+		return new Message();
+	}
+
+	public static Message obtain(Handler handler) {
+		return new Message();
+	}
+
+	public Bundle getData() {
+		if (data == null) {
+			data = new Bundle();
+		}
+		return data;
+	}
+
+	public void setData(Bundle data) {
+		this.data = data;
+	}
+}
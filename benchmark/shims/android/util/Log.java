@@ -0,0 +1,53 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+/**
+ * Stand-in for the Android log on a plain JVM, warnings and errors go to
+ * the standard error stream.
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return print(tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return print(tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return print(tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return print(tag, msg, tr);
+	}
+
+	private static int print(String tag, String msg, Throwable tr) {
+		System.err.println(tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
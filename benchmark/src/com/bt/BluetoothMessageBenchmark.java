@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of the telegrams sent on every robot tick. The put variants encode
+ * into a reused buffer like the outbound ring does, the get variants allocate
+ * the telegram.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BluetoothMessageBenchmark {
+	private static final byte[] DISTANCE_REQUEST = { 0x02, 0x42 };
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(TelegramRing.SLOT_SIZE);
+	private int speed = 0;
+
+	private int nextSpeed() {
+		speed = speed == 100 ? -100 : speed + 1;
+		return speed;
+	}
+
+	@Benchmark
+	public ByteBuffer putMotor() {
+		buffer.clear();
+		BluetoothMessage.putMotorMessage(buffer, 1, nextSpeed());
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer putSyncMotor() {
+		buffer.clear();
+		BluetoothMessage.putSyncMotorMessage(buffer, 1, nextSpeed(), 25, 0);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer putBrake() {
+		buffer.clear();
+		BluetoothMessage.putBrakeMessage(buffer, 2);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer putSensorState() {
+		buffer.clear();
+		BluetoothMessage.putSensorStateMessage(buffer, (byte) 0);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer putActorState() {
+		buffer.clear();
+		BluetoothMessage.putActorStateMessage(buffer, 1);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer putLSWrite() {
+		buffer.clear();
+		BluetoothMessage.putSetLSWriteMessage(buffer, (byte) 3, DISTANCE_REQUEST, 1);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] getMotor() {
+		return BluetoothMessage.getMotorMessage(1, nextSpeed());
+	}
+
+	@Benchmark
+	public byte[] getLSWrite() {
+		return BluetoothMessage.getSetLSWriteMessage((byte) 3, DISTANCE_REQUEST, 1);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
+import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.NXT.NXTActorPin;
+import com.bt.mindstorm.nxt.NXT.NXTSensorPin;
+import com.bt.mindstorm.nxt.OutputState;
+
+/**
+ * The path of a reply from the reader thread to the listeners: decoding in
+ * {@linkplain BluetoothChannel#dispatchMessage(byte[], int)}, the port lookup
+ * of the NXT and the queues of the listeners registered for the port. The
+ * events are delivered on the calling thread, so the listener calls are
+ * part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	/**
+	 * Number of listeners registered on the port of the replies.
+	 */
+	@Param({ "1", "4", "16" })
+	public int listeners;
+
+	private BluetoothChannel channel;
+	private byte[] inputValues;
+	private byte[] outputState;
+	private long events;
+
+	private final LegoBrickEventListener counter = new LegoBrickEventListener() {
+		@Override
+		public void onInputValues(InputValues values) {
+			events++;
+		}
+
+		@Override
+		public void onOutputState(OutputState state) {
+			events++;
+		}
+
+		@Override
+		public void onLowSpeedStatus(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onLowSpeedWrite(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onLowSpeedRead(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onConnectionStateChanged(int state, String text) {
+		}
+	};
+
+	@Setup
+	public void setUp() {
+		NXT nxt = new NXT();
+		nxt.getEventDelivery().setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		for (int i = 0; i < listeners; i++) {
+			// every registration gets its own queue, even for the same listener
+			nxt.addEventListener(NXTSensorPin.PIN_1, copyOf(counter));
+			nxt.addEventListener(NXTActorPin.PIN_B, copyOf(counter));
+		}
+		channel = nxt.getBluetoothConnector();
+		inputValues = Replies.inputValues(0, 0x01, 0x20, 183, 1);
+		outputState = Replies.outputState(1, 75, 1440, 1440);
+	}
+
+	private static LegoBrickEventListener copyOf(final LegoBrickEventListener listener) {
+		return new LegoBrickEventListener() {
+			@Override
+			public void onInputValues(InputValues values) {
+				listener.onInputValues(values);
+			}
+
+			@Override
+			public void onOutputState(OutputState state) {
+				listener.onOutputState(state);
+			}
+
+			@Override
+			public void onLowSpeedStatus(LowSpeedReply reply) {
+			}
+
+			@Override
+			public void onLowSpeedWrite(LowSpeedReply reply) {
+			}
+
+			@Override
+			public void onLowSpeedRead(LowSpeedReply reply) {
+			}
+
+			@Override
+			public void onConnectionStateChanged(int state, String text) {
+			}
+		};
+	}
+
+	@Benchmark
+	public long dispatchInputValues() {
+		channel.dispatchMessage(inputValues, inputValues.length);
+		return events;
+	}
+
+	@Benchmark
+	public long dispatchOutputState() {
+		channel.dispatchMessage(outputState, outputState.length);
+		return events;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+/**
+ * Reply telegrams as the brick sends them, without length prefix, for
+ * feeding the decoding and dispatch benchmarks.
+ */
+public final class Replies {
+	private Replies() {
+	}
+
+	public static byte[] inputValues(int port, int sensorType, int sensorMode, int raw,
+			int scaled) {
+		byte[] reply = new byte[16];
+		header(reply, 0x07);
+		reply[3] = (byte) port;
+		// valid, not calibrated
+		reply[4] = 1;
+		reply[6] = (byte) sensorType;
+		reply[7] = (byte) sensorMode;
+		putWord(reply, 8, raw);
+		putWord(reply, 10, raw);
+		putWord(reply, 12, scaled);
+		putWord(reply, 14, scaled);
+		return reply;
+	}
+
+	public static byte[] outputState(int port, int power, int tachoCount, int rotationCount) {
+		byte[] reply = new byte[25];
+		header(reply, 0x06);
+		reply[3] = (byte) port;
+		reply[4] = (byte) power;
+		// MOTORON + BRAKE, motor speed regulation, running
+		reply[5] = 0x03;
+		reply[6] = 0x01;
+		reply[8] = 0x20;
+		putInt(reply, 13, tachoCount);
+		putInt(reply, 17, tachoCount);
+		putInt(reply, 21, rotationCount);
+		return reply;
+	}
+
+	public static byte[] lowSpeedRead(byte... data) {
+		byte[] reply = new byte[20];
+		header(reply, 0x10);
+		reply[3] = (byte) data.length;
+		System.arraycopy(data, 0, reply, 4, data.length);
+		return reply;
+	}
+
+	public static byte[] batteryLevel(int millivolts) {
+		byte[] reply = new byte[5];
+		header(reply, 0x0B);
+		putWord(reply, 3, millivolts);
+		return reply;
+	}
+
+	public static byte[] keepAlive(long sleepMillis) {
+		byte[] reply = new byte[7];
+		header(reply, 0x0D);
+		putInt(reply, 3, (int) sleepMillis);
+		return reply;
+	}
+
+	/**
+	 * Concatenates telegrams with their length prefix, as read from the
+	 * socket.
+	 */
+	public static byte[] stream(byte[]... telegrams) {
+		int size = 0;
+		for (byte[] telegram : telegrams) {
+			size += telegram.length + 2;
+		}
+		byte[] stream = new byte[size];
+		int offset = 0;
+		for (byte[] telegram : telegrams) {
+			putWord(stream, offset, telegram.length);
+			System.arraycopy(telegram, 0, stream, offset + 2, telegram.length);
+			offset += telegram.length + 2;
+		}
+		return stream;
+	}
+
+	private static void header(byte[] reply, int opcode) {
+		reply[0] = 0x02;
+		reply[1] = (byte) opcode;
+		reply[2] = 0;
+	}
+
+	private static void putWord(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		putWord(buffer, offset, value);
+		putWord(buffer, offset + 2, value >> 16);
+	}
+}
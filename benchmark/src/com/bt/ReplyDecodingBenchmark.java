@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
+import com.bt.mindstorm.nxt.OutputState;
+
+/**
+ * Reading and decoding of replies without dispatch: framing by the
+ * {@link TelegramReader} from a fake stream, validation by the
+ * {@link ReplyDecoder} and building the typed records handed to the
+ * listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyDecodingBenchmark {
+	private final ReplyDecoder decoder = new ReplyDecoder();
+	private byte[] inputValues;
+	private byte[] outputState;
+	private byte[] lowSpeedRead;
+	private byte[] batteryLevel;
+	private TelegramReader reader;
+	private Blackhole blackhole;
+
+	// builds the records like the channel does before dispatching them
+	private final ReplyDecoder.Handler recordBuilder = new ReplyDecoder.HandlerAdapter() {
+		@Override
+		public void onInputValues(ReplyView.InputValuesView reply) {
+			blackhole.consume(new InputValues(reply));
+		}
+
+		@Override
+		public void onOutputState(ReplyView.OutputStateView reply) {
+			blackhole.consume(new OutputState(reply));
+		}
+
+		@Override
+		public void onLowSpeedRead(ReplyView.LowSpeedReadView reply) {
+			blackhole.consume(new LowSpeedReply(3, reply));
+		}
+
+		@Override
+		public void onBatteryLevel(ReplyView.BatteryLevelView reply) {
+			blackhole.consume(reply.getMillivolts());
+		}
+	};
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		inputValues = Replies.inputValues(0, 0x01, 0x20, 183, 1);
+		outputState = Replies.outputState(1, 75, 1440, 1440);
+		lowSpeedRead = Replies.lowSpeedRead((byte) 42);
+		batteryLevel = Replies.batteryLevel(7800);
+		reader = new TelegramReader(new LoopingInputStream(Replies.stream(inputValues,
+				outputState, lowSpeedRead, batteryLevel)));
+	}
+
+	@Benchmark
+	public void decodeInputValues() {
+		decoder.decode(inputValues, inputValues.length, recordBuilder);
+	}
+
+	@Benchmark
+	public void decodeOutputState() {
+		decoder.decode(outputState, outputState.length, recordBuilder);
+	}
+
+	@Benchmark
+	public void decodeLowSpeedRead() {
+		decoder.decode(lowSpeedRead, lowSpeedRead.length, recordBuilder);
+	}
+
+	@Benchmark
+	public void decodeBatteryLevel() {
+		decoder.decode(batteryLevel, batteryLevel.length, recordBuilder);
+	}
+
+	/**
+	 * Frames and decodes one telegram of each type from a stream.
+	 */
+	@Benchmark
+	public void readAndDecode() throws IOException {
+		for (int i = 0; i < 4; i++) {
+			int length = reader.readTelegram();
+			decoder.decode(reader.getBuffer(), length, recordBuilder);
+		}
+	}
+
+	/**
+	 * Endless stream repeating the same bytes, like a socket that never runs
+	 * dry.
+	 */
+	static class LoopingInputStream extends InputStream {
+		private final byte[] bytes;
+		private int position = 0;
+
+		LoopingInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			int value = bytes[position] & 0xFF;
+			position = (position + 1) % bytes.length;
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			int count = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, buffer, offset, count);
+			position = (position + count) % bytes.length;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bt.BluetoothChannel;
+import com.bt.ReplyFuture;
+import com.bt.mindstorm.nxt.NXT.NXTActorPin;
+import com.bt.mindstorm.nxt.NXT.NXTSensorPin;
+
+/**
+ * Round trips through the whole stack, from the request queued on the
+ * {@link BluetoothChannel} over writer thread, telegram framing, the
+ * {@link NXTEmulator} and the reader thread back to the completed future.
+ * With latency the pipelined requests show how much the pipelining depth
+ * hides of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmulatorBenchmark {
+	/**
+	 * Latency of the emulated brick per telegram, in microseconds.
+	 */
+	@Param({ "0", "15000" })
+	public int latency;
+
+	private NXTEmulator emulator;
+	private NXT nxt;
+	private BluetoothChannel channel;
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ReplyFuture<InputValues>[] burst = new ReplyFuture[NXTSensorPin.values().length];
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		emulator = new NXTEmulator();
+		emulator.setLatency(latency);
+		nxt = new NXT();
+		nxt.connectAndStart(emulator);
+		while (!nxt.isConnected()) {
+			Thread.sleep(10);
+		}
+		channel = nxt.getBluetoothConnector();
+	}
+
+	@TearDown
+	public void tearDown() {
+		emulator.close();
+	}
+
+	@Benchmark
+	public InputValues readInput() throws Exception {
+		return nxt.readInput(NXTSensorPin.PIN_1).get();
+	}
+
+	@Benchmark
+	public OutputState getOutputState() throws Exception {
+		return nxt.getOutputState(NXTActorPin.PIN_B).get();
+	}
+
+	/**
+	 * Reads all four sensor ports with the requests in flight at the same
+	 * time.
+	 */
+	@Benchmark
+	public InputValues readInputPipelined() throws Exception {
+		for (int i = 0; i < burst.length; i++) {
+			burst[i] = channel.readInput((byte) i, NXT.DEFAULT_REPLY_TIMEOUT);
+		}
+		InputValues last = null;
+		for (int i = 0; i < burst.length; i++) {
+			last = burst[i].get();
+		}
+		return last;
+	}
+}
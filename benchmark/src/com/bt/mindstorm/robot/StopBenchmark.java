@@ -0,0 +1,170 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bt.BluetoothChannel;
+import com.bt.BluetoothMessage;
+import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.NXTEmulator;
+import com.bt.mindstorm.robot.model.NXTCastorBot;
+
+/**
+ * Time from a stop call until the brake telegrams of all motors have been
+ * written to the stream of the {@link NXTEmulator}. Each stop hits a driving
+ * robot with other telegrams already queued, which the brake has to overtake.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StopBenchmark {
+	private static final int MOTORS = 3;
+
+	/**
+	 * Number of telegrams queued ahead of the stop.
+	 */
+	@Param({ "0", "16" })
+	public int backlog;
+
+	private NXTEmulator emulator;
+	private BrakeCounter counter;
+	private BluetoothChannel channel;
+	private NXTCastorBot robot;
+	private final byte[] inputMode = BluetoothMessage.getSetInputModeMessage((byte) 0,
+			(byte) 0x01, (byte) 0x20);
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		emulator = new NXTEmulator();
+		emulator.start();
+		counter = new BrakeCounter(emulator.getOutputStream());
+		NXT nxt = new NXT();
+		channel = nxt.getBluetoothConnector();
+		channel.setStreams(emulator.getInputStream(), counter);
+		channel.start();
+		while (!nxt.isConnected()) {
+			Thread.sleep(10);
+		}
+		robot = new NXTCastorBot(nxt);
+	}
+
+	@Setup(Level.Invocation)
+	public void drive() {
+		robot.emergencyStop(false);
+		robot.start();
+		robot.setVelocity(0, 0.5);
+		for (int i = 0; i < backlog; i++) {
+			channel.sendMessage(inputMode);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		robot.stop();
+		emulator.close();
+	}
+
+	@Benchmark
+	public long brake() {
+		long target = counter.brakes + MOTORS;
+		channel.brake();
+		return awaitBrakes(target);
+	}
+
+	@Benchmark
+	public long emergencyStop() {
+		long target = counter.brakes + MOTORS;
+		robot.emergencyStop(true);
+		return awaitBrakes(target);
+	}
+
+	private long awaitBrakes(long target) {
+		long written;
+		while ((written = counter.brakes) < target) {
+			Thread.yield();
+		}
+		return written;
+	}
+
+	/**
+	 * Passes the bytes written by the channel on to the emulator and counts
+	 * the brake telegrams among them. The writer thread writes whole batches,
+	 * so a telegram is never split across calls.
+	 */
+	private static class BrakeCounter extends OutputStream {
+		private final OutputStream out;
+		volatile long brakes;
+
+		BrakeCounter(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			long found = 0;
+			int end = off + len;
+			int i = off;
+			while (i + 2 <= end) {
+				int length = (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+				// direct SETOUTPUTSTATE without reply, power 0 and the brake mode
+				if (i + 6 < end && b[i + 2] == (byte) 0x80 && b[i + 3] == 0x04 && b[i + 5] == 0
+						&& b[i + 6] == 0x07) {
+					found++;
+				}
+				i += length + 2;
+			}
+			if (found > 0) {
+				brakes += found;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
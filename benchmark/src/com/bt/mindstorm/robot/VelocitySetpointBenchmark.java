@@ -0,0 +1,68 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stress of the velocity hand-off: the accelerometer thread publishing
+ * setpoints while the motion task reads them. Neither side may slow down the
+ * other noticeably, compare the group results with the writer running alone.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VelocitySetpointBenchmark {
+	private final VelocitySetpoint setpoint = new VelocitySetpoint();
+	private double velocity = 0;
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void publish() {
+		velocity = velocity >= 1.0 ? -1.0 : velocity + 0.01;
+		setpoint.set(velocity, -velocity);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public double read() {
+		long pair = setpoint.get();
+		return VelocitySetpoint.left(pair) + VelocitySetpoint.right(pair);
+	}
+
+	@Benchmark
+	public void publishAlone() {
+		velocity = velocity >= 1.0 ? -1.0 : velocity + 0.01;
+		setpoint.set(velocity, -velocity);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot.sensor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bt.Replies;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.NXT.NXTSensorPin;
+
+/**
+ * Handling of a reading by each sensor type: filtering, updating the state,
+ * adaptive polling and informing the robot. Two readings alternate, so the
+ * change detection sees both changed and unchanged values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+	@Param({ "TOUCH", "LIGHT", "COLOR", "ULTRASONIC" })
+	public String type;
+
+	private Sensor sensor;
+	private InputValues[] readings;
+	private byte[][] distances;
+	private int next = 0;
+	private long notified;
+
+	@Setup
+	public void setUp() {
+		NXT nxt = new NXT();
+		if ("TOUCH".equals(type)) {
+			sensor = new TouchSensor(nxt, NXTSensorPin.PIN_1);
+		} else if ("LIGHT".equals(type)) {
+			sensor = new LightSensor(nxt, NXTSensorPin.PIN_1);
+		} else if ("COLOR".equals(type)) {
+			sensor = new ColorSensor(nxt, NXTSensorPin.PIN_1);
+		} else {
+			sensor = new UltraSonic(nxt, NXTSensorPin.PIN_4);
+		}
+		sensor.setAdaptivePolling(100, 500);
+		sensor.setSensorDataListener(new SensorDataListener() {
+			@Override
+			public void onSensorData(Sensor sensor, long receivedNanos) {
+				notified++;
+			}
+		});
+		byte sensorType = sensor.getSensorType();
+		byte sensorMode = sensor.getSensorMode();
+		readings = new InputValues[] {
+				new InputValues(Replies.inputValues(0, sensorType, sensorMode, 183, 1)),
+				new InputValues(Replies.inputValues(0, sensorType, sensorMode, 1010, 0)) };
+		distances = new byte[][] { { 42 }, { 40 } };
+	}
+
+	@Benchmark
+	public long handleReading() {
+		next ^= 1;
+		if (sensor instanceof UltraSonic) {
+			((UltraSonic) sensor).echoesReceived(distances[next], System.nanoTime());
+		} else {
+			sensor.onInputValues(readings[next]);
+		}
+		return notified;
+	}
+}
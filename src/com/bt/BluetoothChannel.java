@@ -20,9 +20,11 @@
 
 package com.bt;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
@@ -32,13 +34,44 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
 import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.OutputState;
 
 /**
  * Helper class for communication over bluetooth with the NXT Brick.<p/>
  * After starting the thread it will start a loop and call for the lego brick state regularly. This state 
  * can be read out with {@linkplain #getActualState()}. <br/>
  * Messages sent by the lego brick itself, either as a result of an action or 
+ * <p/>
+ * Outbound telegrams are queued in a bounded {@link TelegramRing} and written by a dedicated
+ * writer thread, so callers never block on the bluetooth socket. The writer coalesces all
+ * telegrams queued within the {@linkplain #setCoalescingWindow(int) coalescing window}, or
+ * between {@linkplain #beginBatch()} and {@linkplain #endBatch()}, into a single write.
+ * <p/>
+ * Requests like {@linkplain #readInput(byte, long)} return a {@link ReplyFuture}, completed
+ * by the reader thread with the matching reply. Several of them can be in flight at once,
+ * up to the {@linkplain #setPipeliningDepth(int) pipelining depth}.
+ * <p/>
+ * At most one motor command per output port is queued: a newer speed replaces the queued one,
+ * and a speed equal to the last one sent is suppressed until the
+ * {@linkplain #setMotorRefreshInterval(int) refresh interval} has passed. {@linkplain #brake()}
+ * drops the queued motor commands and overtakes all other traffic.
+ * <p/>
+ * Replies and connection events are delivered as typed records to a {@link LegoBrickEventListener}.
+ * Callers using a {@link Handler.Callback} receive them as message bundles through a
+ * {@link BundleEventAdapter}. The listener is called on the reader thread and must hand the
+ * events on without blocking, the time it takes is recorded as
+ * {@linkplain #getDispatchNanos() reader stall time}.
+ * <p/>
+ * Traffic, round trip times per reply opcode, queue depths and errors are counted in the
+ * {@linkplain #getLinkMetrics() link metrics}.
+ * <p/>
+ * Instead of a bluetooth socket the channel can talk over a pair of
+ * {@linkplain #setStreams(InputStream, OutputStream) streams}, e.g. to an
+ * {@link com.bt.mindstorm.nxt.NXTEmulator}.
  */
 public class BluetoothChannel extends Thread {
 	//private static final String TAG = "BluetoothChannel";
@@ -51,6 +84,22 @@ public class BluetoothChannel extends Thread {
     public static final int FIRMWARE_VERSION = 1006;
 
     public static final int NO_DELAY = 0;
+    public static final int OUTBOUND_QUEUE_SIZE = 32;
+    public static final int DEFAULT_PIPELINING_DEPTH = 4;
+    public static final int DEFAULT_MOTOR_REFRESH_INTERVAL = 1000;
+    /**
+     * Longest time in milliseconds from the reading causing a brake to the brake
+     * telegrams being written.
+     */
+    public static final long STOP_LATENCY_BUDGET = 50;
+    // number of output ports with their own motor command slot
+    private static final int MOTOR_PORTS = 3;
+    // ring tag of the telegrams moving a motor, dropped by a brake
+    private static final int MOTOR_TAG = 1;
+    // time to wait for the stop messages to reach the brick before closing
+    private static final int DISCONNECT_LINGER = 500;
+    // time to wait for the reply to a low speed (I2C) request
+    private static final long LOW_SPEED_REPLY_TIMEOUT = 1000;
 
     private static final UUID SERIAL_PORT_SERVICE_CLASS_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     // this is the only OUI registered by LEGO, see http://standards.ieee.org/regauth/oui/index.shtml
@@ -60,21 +109,65 @@ public class BluetoothChannel extends Thread {
     private BluetoothAdapter btAdapter;
     private BluetoothSocket nxtBTsocket = null;
     private DataOutputStream nxtDos = null;
-    private DataInputStream nxtDin = null;
-    private boolean connected = false;
+    private TelegramReader nxtDin = null;
+    // connection used instead of the socket if set
+    private InputStream streamIn = null;
+    private OutputStream streamOut = null;
+    private volatile boolean connected = false;
+    private final TelegramRing outbound = new TelegramRing(OUTBOUND_QUEUE_SIZE);
+    private volatile TelegramWriter writer;
+    private volatile int coalescingWindow = NO_DELAY;
+    private volatile OnBatchWrittenListener batchListener;
+    private final PendingReplies pendingReplies = new PendingReplies(DEFAULT_PIPELINING_DEPTH);
+    // last speed queued per motor port and when, guarded by the outbound ring
+    private final int[] lastMotorSpeed = new int[MOTOR_PORTS];
+    private final long[] lastMotorTime = new long[MOTOR_PORTS];
+    private volatile int motorRefreshInterval = DEFAULT_MOTOR_REFRESH_INTERVAL;
+    // incremented by every brake, guarded by the outbound ring
+    private volatile int brakeCount;
+    // time of the last brake request not yet written, 0 if none
+    private volatile long brakeRequestedNanos;
+    private final LatencyHistogram brakeLatency = new LatencyHistogram();
+    // arrival of the reading causing the brake not yet written, 0 if none
+    private volatile long stopCauseNanos;
+    private final LatencyHistogram stopLatency = new LatencyHistogram();
+    private volatile LinkMetrics metrics = new LinkMetrics();
+    // written by the writer, taken by the reader thread
+    private final RequestTimes requestTimes = new RequestTimes();
 
-    private Handler.Callback callbackHandler;
+    private LegoBrickEventListener eventListener;
+    // used by the reader thread only
+    private final ReplyDecoder decoder = new ReplyDecoder();
+    private final ReplyDispatcher replyDispatcher = new ReplyDispatcher();
+    private volatile ReplyDecoder.Handler replyHandler;
+    // time the reader spent handing replies on, written by the reader thread only
+    private volatile long dispatchCount;
+    private volatile long dispatchNanos;
+    private volatile long maxDispatchNanos;
     private String macAddress;
 
-    private byte[] actualState;
-
     public BluetoothChannel(Handler.Callback callback) {
+        this(new BundleEventAdapter(callback));
+    }
+
+    public BluetoothChannel(LegoBrickEventListener listener) {
         this.btAdapter = BluetoothAdapter.getDefaultAdapter();
-        this.callbackHandler = callback;
+        this.eventListener = listener;
+        for (int i = 0; i < MOTOR_PORTS; i++) {
+            lastMotorSpeed[i] = Integer.MIN_VALUE;
+        }
+        pendingReplies.setLinkMetrics(metrics);
     }
 
+    /**
+     * Returns the buffer holding the last reply of the brick. The buffer is reused
+     * for every reply, so its content is only valid until the next one arrives.
+     *
+     * @return the reply buffer or null if not connected yet
+     */
     public byte[] getActualState() {
-        return actualState;
+        TelegramReader reader = nxtDin;
+        return (reader == null) ? null : reader.getBuffer();
     }
 
     public boolean isBTAdapterEnabled() {
@@ -87,28 +180,151 @@ public class BluetoothChannel extends Thread {
         while (connected) {
             int length;
             try {
-            	// read answer
-                length = nxtDin.readByte();
-                length = (nxtDin.readByte() << 8) + length;
-                actualState = new byte[length];
-                nxtDin.read(actualState);
-                // send answer to the caller using the callback interface
-                if ((length >= 2) && (actualState[0] == 0x02)) {
-                    dispatchMessage(actualState);
+            	// read a complete answer into the reused buffer
+                length = nxtDin.readTelegram();
+                LinkMetrics linkMetrics = metrics;
+                linkMetrics.recordReceived(length + 2);
+                byte[] reply = nxtDin.getBuffer();
+                if (length >= 2 && reply[0] == 0x02) {
+                    long received = System.nanoTime();
+                    long sent = requestTimes.replied(reply[1], received);
+                    if (sent != RequestTimes.NONE) {
+                        linkMetrics.recordReply(reply[1], received - sent);
+                    }
                 }
+                dispatchMessage(reply, length);
             } catch (IOException e) {
                 // don't inform the user when connection is already closed
-                if (connected)
+                if (connected) {
+                    metrics.recordReceiveError();
                     sendState(STATE_RECEIVEERROR);
+                }
+                outbound.close();
+                pendingReplies.failAll(e);
                 return;
             }
         }
     }
 
+    /**
+     * Decodes a reply and hands it on, called by the reader thread for every
+     * telegram read.
+     *
+     * @param reply the telegram without length prefix, only valid during the call
+     * @param length length of the telegram
+     */
+    void dispatchMessage(byte[] reply, int length) {
+        // send answer to the caller using the callback interface
+        long start = System.nanoTime();
+        decoder.decode(reply, length, replyDispatcher);
+        ReplyDecoder.Handler handler = replyHandler;
+        if (handler != null)
+            decoder.redeliver(handler);
+        recordDispatch(System.nanoTime() - start);
+    }
+
+    // called by the reader thread only
+    private void recordDispatch(long nanos) {
+        dispatchCount++;
+        dispatchNanos += nanos;
+        if (nanos > maxDispatchNanos)
+            maxDispatchNanos = nanos;
+    }
+
+    /**
+     * Returns the number of replies the reader thread has handed on.
+     *
+     * @return dispatched replies
+     */
+    public long getDispatchCount() {
+        return dispatchCount;
+    }
+
+    /**
+     * Returns the total time the reader thread spent handing on replies
+     * instead of reading, in nanoseconds.
+     *
+     * @return reader stall time
+     */
+    public long getDispatchNanos() {
+        return dispatchNanos;
+    }
+
+    /**
+     * Returns the longest time the reader thread spent handing on a single
+     * reply, in nanoseconds.
+     *
+     * @return maximum reader stall time
+     */
+    public long getMaxDispatchNanos() {
+        return maxDispatchNanos;
+    }
+
+    /**
+     * Returns the counters of the link, see {@link LinkMetrics}.
+     *
+     * @return the metrics
+     */
+    public LinkMetrics getLinkMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records into the given metrics instead, e.g. to keep counting over
+     * the channels of several connections.
+     *
+     * @param metrics the metrics
+     */
+    public void setLinkMetrics(LinkMetrics metrics) {
+        this.metrics = metrics;
+        pendingReplies.setLinkMetrics(metrics);
+    }
+
+    /**
+     * Sets a handler receiving every reply as typed view, after it has been handled by
+     * the channel. It is called on the reader thread and must return quickly, the views
+     * are only valid during the call.
+     *
+     * @param handler the handler or null
+     */
+    public void setReplyHandler(ReplyDecoder.Handler handler) {
+        this.replyHandler = handler;
+    }
+
+    /**
+     * Returns the number of received telegrams that were no valid reply.
+     *
+     * @return malformed replies
+     */
+    public long getMalformedReplyCount() {
+        return decoder.getMalformedCount();
+    }
+
+    /**
+     * Returns the number of replies reporting an error status.
+     *
+     * @return error replies
+     */
+    public long getErrorReplyCount() {
+        return decoder.getErrorCount();
+    }
+
     public void setMACAddress(String macAddress) {
 	    this.macAddress = macAddress;
 	}
 
+	/**
+	 * Connects over the given streams instead of a bluetooth socket, e.g. to an
+	 * emulated brick. Must be called before the thread is started.
+	 *
+	 * @param in stream the replies are read from
+	 * @param out stream the commands are written to
+	 */
+	public void setStreams(InputStream in, OutputStream out) {
+		streamIn = in;
+		streamOut = out;
+	}
+
 	public Handler getBluetoothMessageHandler() {
 		return bluetoothMessageHandler;
 	}
@@ -117,6 +333,68 @@ public class BluetoothChannel extends Thread {
 		return connected;
 	}
 
+	/**
+	 * Sets the time the writer waits for further telegrams after the first
+	 * one of a batch. With {@linkplain #NO_DELAY} only telegrams that are
+	 * already queued are coalesced.
+	 *
+	 * @param millis coalescing window in milliseconds
+	 */
+	public void setCoalescingWindow(int millis) {
+		this.coalescingWindow = millis;
+	}
+
+	/**
+	 * Starts a batch: telegrams queued until {@linkplain #endBatch()} are
+	 * written together. Used to send all commands of one robot tick at once.
+	 */
+	public void beginBatch() {
+		outbound.hold();
+	}
+
+	/**
+	 * Ends a batch started with {@linkplain #beginBatch()}.
+	 */
+	public void endBatch() {
+		outbound.release();
+	}
+
+	/**
+	 * Sets the maximum number of requests waiting for their reply at the same time.
+	 *
+	 * @param depth pipelining depth
+	 */
+	public void setPipeliningDepth(int depth) {
+		pendingReplies.setDepth(depth);
+	}
+
+	/**
+	 * Sets the time after which a motor speed equal to the last one sent is
+	 * sent again.
+	 *
+	 * @param millis refresh interval in milliseconds
+	 */
+	public void setMotorRefreshInterval(int millis) {
+		this.motorRefreshInterval = millis;
+	}
+
+	public void setOnBatchWrittenListener(OnBatchWrittenListener listener) {
+		this.batchListener = listener;
+	}
+
+	/**
+	 * Listener informed by the writer thread about every batch written to the socket.
+	 */
+	public interface OnBatchWrittenListener {
+		/**
+		 * Called after a batch has been written and flushed.
+		 *
+		 * @param telegrams number of telegrams in the batch
+		 * @param bytes number of bytes written, including length prefixes
+		 */
+		void onBatchWritten(int telegrams, int bytes);
+	}
+
 	public void disconnect() {
 		Message msg = bluetoothMessageHandler.obtainMessage();
 		Bundle bundle = new Bundle();
@@ -133,6 +411,10 @@ public class BluetoothChannel extends Thread {
 	 *      />
 	 */
 	private void createNXTconnection() {
+	    if (streamIn != null) {
+	        openConnection(streamIn, streamOut);
+	        return;
+	    }
 	    try {
 	        BluetoothSocket nxtBTsocketTEMPORARY;
 	        BluetoothDevice nxtDevice = null;
@@ -148,137 +430,607 @@ public class BluetoothChannel extends Thread {
 	        nxtBTsocketTEMPORARY.connect();
 	        nxtBTsocket = nxtBTsocketTEMPORARY;
 	
-	        nxtDin = new DataInputStream(nxtBTsocket.getInputStream());
-	        nxtDos = new DataOutputStream(nxtBTsocket.getOutputStream());
-	
-	        connected = true;
-	        sendState(STATE_CONNECTED);
+	        openConnection(nxtBTsocket.getInputStream(), nxtBTsocket.getOutputStream());
 	    } catch (IOException e) {
 	         sendState(STATE_CONNECTERROR);
 	         Log.e(BluetoothChannel.class.getName(), e.getMessage());
 	    }
 	}
 
-	private void dispatchMessage(byte[] message) {
-        switch (message[1]) {
-            case 0x06:
-                // GETOUTPUTSTATE return message
-                if (message.length >= 25)
-                    sendState(NXT.MOTOR_STATE);
-                break;
-            case 0x07:
-                // GETINPUTSTATE return message
-                if (message.length >= 16)
-                    sendState(NXT.GET_INPUTSTATE, message);
-                break;
-            case 0x0E:
-            	// LSSTATUS
-            	if (message.length == 4) 
-            		sendLSStatus(NXT.LSSTATUS, message);
-            case 0x0F:
-            	// LSWRITE
-            	if (message.length == 3) 
-            		sendLSWrite(NXT.LSWRITE, message);
-            case 0x10:
-            	// LSREAD
-            	if (message.length == 20) 
-            		sendLSRead(NXT.LSREAD, message);
+	private void openConnection(InputStream in, OutputStream out) {
+	    nxtDin = new TelegramReader(in);
+	    nxtDos = new DataOutputStream(out);
+	    writer = new TelegramWriter();
+	    writer.start();
+	
+	    connected = true;
+	    metrics.recordConnect();
+	    sendState(STATE_CONNECTED);
+	}
+
+    /**
+     * Turns the decoded replies into records, completes the requests waiting for them
+     * and hands them to the event listener. Every reply results in one event at most.
+     */
+    private class ReplyDispatcher extends ReplyDecoder.HandlerAdapter {
+        @Override
+        public void onOutputState(ReplyView.OutputStateView reply) {
+            OutputState state = new OutputState(reply);
+            ReplyFuture<OutputState> future = pollReply(0x06, state.getPort());
+            if (future != null)
+                future.complete(state);
+            eventListener.onOutputState(state);
+        }
+
+        @Override
+        public void onInputValues(ReplyView.InputValuesView reply) {
+            InputValues values = new InputValues(reply);
+            ReplyFuture<InputValues> future = pollReply(0x07, values.getPort());
+            if (future != null)
+                future.complete(values);
+            eventListener.onInputValues(values);
+        }
+
+        @Override
+        public void onBatteryLevel(ReplyView.BatteryLevelView reply) {
+            ReplyFuture<Integer> future = pollReply(0x0B, PendingReplies.ANY_PORT);
+            if (future != null)
+                future.complete(reply.getMillivolts());
+        }
+
+        @Override
+        public void onLowSpeedStatus(ReplyView.LowSpeedStatusView reply) {
+            LowSpeedReply status = new LowSpeedReply(lowSpeedPort(0x0E), reply.getStatus(),
+                    reply.getBytesReady());
+            completeLowSpeed(0x0E, status);
+            eventListener.onLowSpeedStatus(status);
+        }
+
+        @Override
+        public void onLowSpeedRead(ReplyView.LowSpeedReadView reply) {
+            LowSpeedReply read = new LowSpeedReply(lowSpeedPort(0x10), reply);
+            completeLowSpeed(0x10, read);
+            eventListener.onLowSpeedRead(read);
+        }
+
+        @Override
+        public void onStatus(ReplyView reply) {
+            if (reply.getOpcode() == 0x0F) {
+                LowSpeedReply write = new LowSpeedReply(lowSpeedPort(0x0F), reply.getStatus(), 0);
+                completeLowSpeed(0x0F, write);
+                eventListener.onLowSpeedWrite(write);
+            }
+        }
+
+        @Override
+        public void onError(ReplyView reply) {
+            int opcode = reply.getOpcode();
+            switch (opcode) {
+                case 0x0E:
+                    // low speed errors are reported like any other low speed status
+                    LowSpeedReply status = new LowSpeedReply(lowSpeedPort(0x0E), reply.getStatus(), 0);
+                    completeLowSpeed(0x0E, status);
+                    eventListener.onLowSpeedStatus(status);
+                    break;
+                case 0x10:
+                    LowSpeedReply read = new LowSpeedReply(lowSpeedPort(0x10), reply.getStatus(), 0);
+                    completeLowSpeed(0x10, read);
+                    eventListener.onLowSpeedRead(read);
+                    break;
+                default:
+                    // the port is still present in the error replies carrying one
+                    int port = ((opcode == 0x06 || opcode == 0x07) && reply.getLength() > 3)
+                            ? reply.get(3) : PendingReplies.ANY_PORT;
+                    ReplyFuture<?> future = pendingReplies.poll(opcode, port);
+                    if (future != null)
+                        future.fail(new IOException("brick replied to opcode 0x"
+                                + Integer.toHexString(opcode) + " with status 0x"
+                                + Integer.toHexString(reply.getStatus() & 0xFF)));
+            }
+        }
+
+        @Override
+        public void onMalformed(byte[] telegram, int length) {
+            Log.w(TAG, "malformed reply of " + length + " bytes dropped");
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private <T> ReplyFuture<T> pollReply(int opcode, int port) {
+        return (ReplyFuture<T>) pendingReplies.poll(opcode, port);
+    }
+
+    private int lowSpeedPort(int opcode) {
+        int port = pendingReplies.peekPort(opcode);
+        return port == PendingReplies.ANY_PORT ? LowSpeedReply.UNKNOWN_PORT : port;
+    }
+
+    private void completeLowSpeed(int opcode, LowSpeedReply reply) {
+        int port = reply.getPort() == LowSpeedReply.UNKNOWN_PORT ? PendingReplies.ANY_PORT
+                : reply.getPort();
+        ReplyFuture<LowSpeedReply> future = pollReply(opcode, port);
+        if (future != null)
+            future.complete(reply);
+    }
+
 	private void destroyNXTconnection() {
-		if (nxtBTsocket != null) {
-			try {
-				// send stop messages before closing
-				changeMotorSpeed(NXT.NXTActorPin.PIN_A.getPinNr(), 0);
-				changeMotorSpeed(NXT.NXTActorPin.PIN_B.getPinNr(), 0);
-				changeMotorSpeed(NXT.NXTActorPin.PIN_C.getPinNr(), 0);
-				waitSomeTime(500);
-				connected = false;
+		if (connected && writer != null) {
+			// send stop messages before closing, the writer closes the
+			// connection as soon as they are written
+			changeMotorSpeed(NXT.NXTActorPin.PIN_A.getPinNr(), 0, true);
+			changeMotorSpeed(NXT.NXTActorPin.PIN_B.getPinNr(), 0, true);
+			changeMotorSpeed(NXT.NXTActorPin.PIN_C.getPinNr(), 0, true);
+			writer.closeAfterDrain(DISCONNECT_LINGER);
+		}
+	}
+
+	private void closeNXTconnection() {
+		try {
+			connected = false;
+			if (nxtBTsocket != null) {
 				nxtBTsocket.close();
 				nxtBTsocket = null;
-				if (nxtDin != null) {
-					nxtDin.close();
-					nxtDos.close();
-				}
-			} catch (IOException e) {
-	            sendToast("Problem in closing the connection!");
-				Log.e(BluetoothChannel.class.getName(), e.getMessage());
 			}
+			if (nxtDin != null) {
+				nxtDin.close();
+				nxtDos.close();
+			}
+		} catch (IOException e) {
+            sendToast("Problem in closing the connection!");
+			Log.e(BluetoothChannel.class.getName(), e.getMessage());
 		}
 	}
-    
-    private void changeMotorSpeed(int motor, int speed) {
+
+    /**
+     * Queues a SETOUTPUTSTATE telegram for the given motor. A telegram for the same
+     * motor still waiting in the queue is replaced, a speed equal to the last one
+     * is only sent again after the refresh interval.
+     *
+     * @param motor output port
+     * @param speed power within [-100,100], 0 stops the motor
+     * @return true if queued or suppressed, false if the queue is full or not connected
+     */
+    public boolean changeMotorSpeed(int motor, int speed) {
+        return changeMotorSpeed(motor, speed, false);
+    }
+
+    private boolean changeMotorSpeed(int motor, int speed, boolean force) {
         if (speed > 100)
             speed = 100;
         else if (speed < -100)
             speed = -100;
-        byte[] message = BluetoothMessage.getMotorMessage(motor, speed);
-        sendMessage(message);
+        boolean keyed = motor >= 0 && motor < MOTOR_PORTS;
+        long now = System.currentTimeMillis();
+        synchronized (outbound) {
+            if (keyed && !force && speed == lastMotorSpeed[motor]
+                    && now - lastMotorTime[motor] < motorRefreshInterval) {
+                // nothing new for the brick
+                return true;
+            }
+            ByteBuffer telegram = claimTelegram(keyed ? motor : TelegramRing.NO_KEY, MOTOR_TAG);
+            if (telegram == null) {
+                return false;
+            }
+            BluetoothMessage.putMotorMessage(telegram, motor, speed);
+            outbound.commit();
+            if (keyed) {
+                lastMotorSpeed[motor] = speed;
+                lastMotorTime[motor] = now;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Brakes all motors ahead of any queued traffic. All queued motor commands,
+     * including synchronized movements, are dropped, the brake telegrams for all
+     * ports go out together through the priority lane of the outbound ring, even
+     * within a batch. The time until they are written is recorded as
+     * {@linkplain #getBrakeLatency() brake latency}.
+     */
+    public void brake() {
+        brake(0);
+    }
+
+    /**
+     * Brakes all motors like {@linkplain #brake()} because of a reading. The time
+     * from the arrival of the reading until the brake telegrams are written is
+     * recorded as {@linkplain #getStopLatency() stop latency}.
+     *
+     * @param causeNanos {@link System#nanoTime()} the reading arrived at, 0 if
+     *            the brake has no such cause
+     */
+    public void brake(long causeNanos) {
+        long requested = System.nanoTime();
+        long now = System.currentTimeMillis();
+        synchronized (outbound) {
+            if (writer == null) {
+                return;
+            }
+            outbound.discardTagged(MOTOR_TAG);
+            brakeCount++;
+            for (int motor = 0; motor < MOTOR_PORTS; motor++) {
+                ByteBuffer telegram = outbound.claimPriority();
+                if (telegram == null) {
+                    Log.w(TAG, "priority lane full, brake dropped");
+                    continue;
+                }
+                BluetoothMessage.putBrakeMessage(telegram, motor);
+                outbound.commitPriority();
+                // the motors stand still, a following stop must not release the brake
+                lastMotorSpeed[motor] = 0;
+                lastMotorTime[motor] = now;
+            }
+            if (brakeRequestedNanos == 0) {
+                brakeRequestedNanos = requested;
+            }
+            if (stopCauseNanos == 0) {
+                stopCauseNanos = causeNanos;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of brakes so far. Motor commands held back by the caller
+     * must be dropped once it has changed, they would release the brake.
+     *
+     * @return the brake count
+     */
+    public int getBrakeCount() {
+        return brakeCount;
+    }
+
+    /**
+     * Returns the time from {@linkplain #brake()} until the brake telegrams have
+     * been written to the socket.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getBrakeLatency() {
+        return brakeLatency;
+    }
+
+    /**
+     * Returns the time from the arrival of a reading causing a
+     * {@linkplain #brake(long) brake} until the brake telegrams have been written
+     * to the socket.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getStopLatency() {
+        return stopLatency;
     }
 
     private void rotateTo(int motor, int end) {
-        byte[] message = BluetoothMessage.getMotorMessage(motor, -80, end);
-        sendMessage(message);
+        boolean keyed = motor >= 0 && motor < MOTOR_PORTS;
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram(keyed ? motor : TelegramRing.NO_KEY, MOTOR_TAG);
+            if (telegram != null) {
+                BluetoothMessage.putMotorMessage(telegram, motor, -80, end);
+                outbound.commit();
+                if (keyed) {
+                    // the motor stops on its own, so the next speed must not be suppressed
+                    lastMotorSpeed[motor] = Integer.MIN_VALUE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues SETOUTPUTSTATE telegrams running two motors synchronized by the brick,
+     * see {@linkplain BluetoothMessage#getSyncMotorMessage(int, int, int, int)}. Both
+     * telegrams go out in the same write and replace queued telegrams for the motors.
+     *
+     * @param first output port of the first motor
+     * @param second output port of the second motor
+     * @param speed power within [-100,100], 0 stops both motors
+     * @param turnRatio turn ratio within [-100,100]
+     * @return true if both telegrams are queued, false if the queue is full or not connected
+     */
+    public boolean changeSyncSpeed(int first, int second, int speed, int turnRatio) {
+        speed = Math.max(-100, Math.min(100, speed));
+        turnRatio = Math.max(-100, Math.min(100, turnRatio));
+        // the writer cannot take a telegram while the ring is locked
+        synchronized (outbound) {
+            boolean queued = putSyncMotor(first, first, speed, turnRatio, 0);
+            return putSyncMotor(second, second, speed, turnRatio, 0) && queued;
+        }
+    }
+
+    /**
+     * Queues a synchronized movement of two motors that ends after the given number
+     * of degrees. The relative positions are reset first, the rotation counts are kept.
+     *
+     * @param first output port of the first motor
+     * @param second output port of the second motor
+     * @param speed power within [-100,100]
+     * @param turnRatio turn ratio within [-100,100]
+     * @param degrees tacho limit, must be positive
+     */
+    public void rotateSync(int first, int second, int speed, int turnRatio, int degrees) {
+        if (degrees <= 0) {
+            throw new IllegalArgumentException("degrees must be positive");
+        }
+        speed = Math.max(-100, Math.min(100, speed));
+        turnRatio = Math.max(-100, Math.min(100, turnRatio));
+        synchronized (outbound) {
+            // not keyed, replacing a queued telegram would reorder them
+            ByteBuffer telegram = claimTelegram();
+            if (telegram != null) {
+                BluetoothMessage.putResetMessage(telegram, first, true);
+                outbound.commit();
+            }
+            telegram = claimTelegram();
+            if (telegram != null) {
+                BluetoothMessage.putResetMessage(telegram, second, true);
+                outbound.commit();
+            }
+            putSyncMotor(first, TelegramRing.NO_KEY, speed, turnRatio, degrees);
+            putSyncMotor(second, TelegramRing.NO_KEY, speed, turnRatio, degrees);
+        }
+    }
+
+    // caller is synchronized on the ring
+    private boolean putSyncMotor(int motor, int key, int speed, int turnRatio, int end) {
+        boolean keyed = motor >= 0 && motor < MOTOR_PORTS;
+        ByteBuffer telegram = claimTelegram(keyed ? key : TelegramRing.NO_KEY, MOTOR_TAG);
+        if (telegram == null) {
+            return false;
+        }
+        BluetoothMessage.putSyncMotorMessage(telegram, motor, speed, turnRatio, end);
+        outbound.commit();
+        if (keyed) {
+            // sent in another regulation mode, the next speed must not be suppressed
+            lastMotorSpeed[motor] = Integer.MIN_VALUE;
+        }
+        return true;
     }
 
     private void reset(int motor) {
-        byte[] message = BluetoothMessage.getResetMessage(motor);
-        sendMessage(message);
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram != null) {
+                BluetoothMessage.putResetMessage(telegram, motor);
+                outbound.commit();
+            }
+        }
     }
 
-    private void readMotorState(int actor) {
-        byte[] message = BluetoothMessage.getActorStateMessage(actor);
-        sendMessage(message);
+    /**
+     * Queues a GETOUTPUTSTATE request for the given motor port. A request for the same
+     * port that is still queued is replaced, so slow links do not pile up stale polls.
+     * Ports outside [0, 2] are ignored.
+     */
+    public void readMotorState(int actor) {
+        if (actor < 0 || actor >= MOTOR_PORTS) {
+            // the port selects the key of the request, it must stay within the ring
+            Log.w(TAG, "no motor at port " + actor);
+            return;
+        }
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram(MOTOR_PORTS + actor);
+            if (telegram != null) {
+                BluetoothMessage.putActorStateMessage(telegram, actor);
+                outbound.commit();
+            }
+        }
     }
 
-	private void readSensorState(byte sensorPort) {
-        byte[] message = BluetoothMessage.getSensorStateMessage(sensorPort);
-        sendMessage(message);
+    /**
+     * Queues a GETINPUTVALUES request for the given sensor port.
+     */
+	public void readSensorState(byte sensorPort) {
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram != null) {
+                BluetoothMessage.putSensorStateMessage(telegram, sensorPort);
+                outbound.commit();
+            }
+        }
 	}
 
-	private void setLSWrite(byte sensorPort) {
-        byte[] message = BluetoothMessage.getSetLSWriteMessage(sensorPort);
-        sendMessage(message);
+    /**
+     * Queues a LSWRITE request for the given sensor port.
+     *
+     * @return future completed with the reply
+     */
+	public ReplyFuture<LowSpeedReply> setLSWrite(byte sensorPort) {
+        return requestLowSpeed(0x0F, sensorPort, null, 1);
+	}
+
+    /**
+     * Queues a LSWRITE request transmitting arbitrary data to the sensor at the given port.
+     *
+     * @param sensorPort input port
+     * @param data bytes to transmit, starting with the I2C address
+     * @param receiveLength number of bytes the sensor answers with
+     * @return future completed with the reply
+     */
+	public ReplyFuture<LowSpeedReply> setLSWrite(byte sensorPort, byte[] data, int receiveLength) {
+        if (data.length > BluetoothMessage.LS_MAX_DATA || receiveLength < 0
+                || receiveLength > BluetoothMessage.LS_MAX_DATA) {
+            throw new IllegalArgumentException("at most " + BluetoothMessage.LS_MAX_DATA
+                    + " bytes per low speed transaction");
+        }
+        return requestLowSpeed(0x0F, sensorPort, data, receiveLength);
 	}
 	
-	private void setLSRead(byte sensorPort) {
-        byte[] message = BluetoothMessage.getSetLSReadMessage(sensorPort);
-        sendMessage(message);
+    /**
+     * Queues a LSREAD request for the given sensor port.
+     *
+     * @return future completed with the reply
+     */
+	public ReplyFuture<LowSpeedReply> setLSRead(byte sensorPort) {
+        return requestLowSpeed(0x10, sensorPort, null, 0);
 	}
 
-	private void setLSStatus(byte sensorPort) {
-        byte[] message = BluetoothMessage.getSetLSStatusMessage(sensorPort);
-        sendMessage(message);
+    /**
+     * Queues a LSGETSTATUS request for the given sensor port.
+     *
+     * @return future completed with the reply
+     */
+	public ReplyFuture<LowSpeedReply> setLSStatus(byte sensorPort) {
+        return requestLowSpeed(0x0E, sensorPort, null, 0);
 	}
 
+    // low speed replies do not carry the port, registering the request lets the
+    // reader attribute the reply to the port of the oldest request in flight
+    private ReplyFuture<LowSpeedReply> requestLowSpeed(int opcode, byte sensorPort, byte[] data,
+            int receiveLength) {
+        ReplyFuture<LowSpeedReply> future = pendingReplies.register(opcode, sensorPort,
+                LOW_SPEED_REPLY_TIMEOUT);
+        if (future.isDone()) {
+            return future;
+        }
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram == null) {
+                pendingReplies.abort(future, new IOException("request could not be queued"));
+                return future;
+            }
+            switch (opcode) {
+                case 0x0E:
+                    BluetoothMessage.putSetLSStatusMessage(telegram, sensorPort);
+                    break;
+                case 0x0F:
+                    if (data == null)
+                        BluetoothMessage.putSetLSWriteMessage(telegram, sensorPort);
+                    else
+                        BluetoothMessage.putSetLSWriteMessage(telegram, sensorPort, data,
+                                receiveLength);
+                    break;
+                default:
+                    BluetoothMessage.putSetLSReadMessage(telegram, sensorPort);
+            }
+            outbound.commit();
+        }
+        return future;
+    }
+
+    /**
+     * Requests the input values of a sensor port without waiting for the reply.
+     *
+     * @param sensorPort input port
+     * @param timeoutMillis time to wait for the reply
+     * @return future completed with the reply
+     */
+    public ReplyFuture<InputValues> readInput(byte sensorPort, long timeoutMillis) {
+        ReplyFuture<InputValues> future = pendingReplies.register(0x07, sensorPort, timeoutMillis);
+        if (future.isDone()) {
+            return future;
+        }
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram == null) {
+                pendingReplies.abort(future, new IOException("request could not be queued"));
+                return future;
+            }
+            BluetoothMessage.putSensorStateMessage(telegram, sensorPort);
+            outbound.commit();
+        }
+        return future;
+    }
+
+    /**
+     * Requests the battery level without waiting for the reply.
+     *
+     * @param timeoutMillis time to wait for the reply
+     * @return future completed with the battery voltage in millivolts
+     */
+    public ReplyFuture<Integer> getBatteryLevel(long timeoutMillis) {
+        ReplyFuture<Integer> future = pendingReplies.register(0x0B, PendingReplies.ANY_PORT,
+                timeoutMillis);
+        if (future.isDone()) {
+            return future;
+        }
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram == null) {
+                pendingReplies.abort(future, new IOException("request could not be queued"));
+                return future;
+            }
+            BluetoothMessage.putBatteryLevelMessage(telegram);
+            outbound.commit();
+        }
+        return future;
+    }
+
+    /**
+     * Requests the output state of a motor port without waiting for the reply.
+     *
+     * @param motor output port
+     * @param timeoutMillis time to wait for the reply
+     * @return future completed with the reply
+     */
+    public ReplyFuture<OutputState> getOutputState(byte motor, long timeoutMillis) {
+        ReplyFuture<OutputState> future = pendingReplies.register(0x06, motor, timeoutMillis);
+        if (future.isDone()) {
+            return future;
+        }
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram == null) {
+                pendingReplies.abort(future, new IOException("request could not be queued"));
+                return future;
+            }
+            BluetoothMessage.putActorStateMessage(telegram, motor);
+            outbound.commit();
+        }
+        return future;
+    }
+
 	private void setInputPort(byte inputPort, byte inputType, byte inputMode) {
-    	byte[] message = BluetoothMessage.getSetInputModeMessage(inputPort, inputType, inputMode);
     	Log.d(TAG, "inputPort = " + inputPort);
     	Log.d(TAG, "inputType = " + inputType);
     	Log.d(TAG, "inputMode = " + inputMode);
-    	if (! sendMessage(message)) {
-    		sendToast("Problem setting sensor!");;
-    	}
+        synchronized (outbound) {
+            ByteBuffer telegram = claimTelegram();
+            if (telegram == null) {
+                sendToast("Problem setting sensor!");
+                return;
+            }
+            BluetoothMessage.putSetInputModeMessage(telegram, inputPort, inputType, inputMode);
+            outbound.commit();
+        }
     }
 
-    private boolean sendMessage(byte[] message) {
-        if (nxtDos == null) {
+    /**
+     * Queues an arbitrary telegram, given without length prefix.
+     *
+     * @param message the telegram
+     * @return true if queued, false if not connected or the queue is full
+     */
+    public boolean sendMessage(byte[] message) {
+        if (writer == null) {
             return false;
         }
-        try {
-            // send message length first
-            int messageLength = message.length;
-            nxtDos.writeByte(messageLength);
-            nxtDos.writeByte(messageLength >> 8);
-            // send message
-            nxtDos.write(message, 0, message.length);
-            nxtDos.flush();
-            return true;
-        } catch (IOException ioe) {
-            sendState(STATE_SENDERROR);
+        // the length prefix is added by the ring, the writer thread does the actual I/O
+        if (!outbound.offer(message)) {
+            Log.w(TAG, "outbound queue full, telegram dropped");
             return false;
         }
+        return true;
+    }
+
+    // claims a slot of the outbound ring to encode a telegram into, the caller
+    // must be synchronized on the ring and commit the slot afterwards
+    private ByteBuffer claimTelegram() {
+        return claimTelegram(TelegramRing.NO_KEY);
+    }
+
+    private ByteBuffer claimTelegram(int key) {
+        return claimTelegram(key, TelegramRing.NO_TAG);
+    }
+
+    private ByteBuffer claimTelegram(int key, int tag) {
+        if (writer == null) {
+            return null;
+        }
+        ByteBuffer telegram = outbound.claim(key, tag);
+        if (telegram == null) {
+            Log.w(TAG, "outbound queue full, telegram dropped");
+        }
+        return telegram;
     }
 
     private void waitSomeTime(int millis) {
@@ -290,62 +1042,113 @@ public class BluetoothChannel extends Thread {
     }
 
     private void sendToast(String toastText) {
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", DISPLAY_TOAST);
-        myBundle.putString("toastText", toastText);
-        sendBundle(myBundle);
-    }
-
-    private void sendState(int message) {
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", message);
-        sendBundle(myBundle);
-    }
-
-    private void sendState(int getInputstate, byte[] message) {
-    	short value = 0;
-    	value |= message[12] & 0xFF;
-        value <<= 8;
-        value |= message[13] & 0xFF;
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", getInputstate);
-        myBundle.putByte("sensorport", message[3]);
-        myBundle.putByte("sensortype", message[6]);
-        myBundle.putShort("value", value);
-        sendBundle(myBundle);
-	}
+        eventListener.onConnectionStateChanged(DISPLAY_TOAST, toastText);
+    }
 
-	private void sendLSStatus(int getLsState, byte[] message) {
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", getLsState);
-        myBundle.putByte("status", message[2]);
-        myBundle.putByte("bytesReady", message[3]);
-        sendBundle(myBundle);
-	}
+    private void sendState(int state) {
+        eventListener.onConnectionStateChanged(state, null);
+    }
+    
+    /**
+     * Drains the outbound ring and writes the telegrams to the socket, coalescing
+     * everything queued within the window into one write. This is the only thread
+     * touching the output stream.
+     */
+    private class TelegramWriter extends Thread {
+        private volatile int linger = -1;
 
-	private void sendLSWrite(int getLsWrite, byte[] message) {
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", getLsWrite);
-        myBundle.putByte("status", message[2]);
-        sendBundle(myBundle);
-	}
-	
-	private void sendLSRead(int getLsRead, byte[] message) {
-        Bundle myBundle = new Bundle();
-        myBundle.putInt("message", getLsRead);
-        myBundle.putByte("status", message[2]);
-        myBundle.putByte("bytesRead", message[3]);
-        myBundle.putByte("data", message[4]);
-        sendBundle(myBundle);
-	}
+        TelegramWriter() {
+            super("NXT writer");
+        }
 
-	private void sendBundle(Bundle myBundle) {
-        Message myMessage = Message.obtain();
-        myMessage.setData(myBundle);
-        callbackHandler.handleMessage(myMessage);
+        /**
+         * Stops accepting telegrams and closes the connection once all queued
+         * ones are written.
+         *
+         * @param millis time to wait after the last telegram before closing
+         */
+        void closeAfterDrain(int millis) {
+            linger = millis;
+            outbound.close();
+        }
+
+        @Override
+        public void run() {
+            byte[] batch = new byte[outbound.capacity() * TelegramRing.SLOT_SIZE];
+            int length;
+            long priorityTaken = outbound.getPriorityTaken();
+            while ((length = outbound.take(batch, 0)) >= 0) {
+                int size = length;
+                int telegrams = 1;
+                long deadline = System.currentTimeMillis() + coalescingWindow;
+                while ((length = outbound.poll(batch, size, deadline)) > 0) {
+                    size += length;
+                    telegrams++;
+                }
+                // before the write, the reply may be read before it returns
+                recordRequests(batch, size);
+                try {
+                    nxtDos.write(batch, 0, size);
+                    nxtDos.flush();
+                } catch (IOException ioe) {
+                    metrics.recordSendError();
+                    sendState(STATE_SENDERROR);
+                    continue;
+                }
+                LinkMetrics linkMetrics = metrics;
+                linkMetrics.recordSent(telegrams, size);
+                linkMetrics.recordOutboundDepth(outbound.takeHighWater());
+                long taken = outbound.getPriorityTaken();
+                if (taken != priorityTaken) {
+                    // the batch carried brake telegrams
+                    priorityTaken = taken;
+                    long written = System.nanoTime();
+                    long requested = brakeRequestedNanos;
+                    if (requested != 0) {
+                        brakeRequestedNanos = 0;
+                        brakeLatency.record(written - requested);
+                    }
+                    long cause = stopCauseNanos;
+                    if (cause != 0) {
+                        stopCauseNanos = 0;
+                        recordStopLatency(written - cause);
+                    }
+                }
+                OnBatchWrittenListener listener = batchListener;
+                if (listener != null) {
+                    listener.onBatchWritten(telegrams, size);
+                }
+            }
+            if (linger >= 0) {
+                waitSomeTime(linger);
+                closeNXTconnection();
+            }
+        }
     }
-    
-    // receive messages from the UI
+
+    // notes the send time of every telegram in the batch asking for a reply
+    private void recordRequests(byte[] batch, int size) {
+        long now = System.nanoTime();
+        int offset = 0;
+        while (offset + 3 < size) {
+            int length = (batch[offset] & 0xFF) | (batch[offset + 1] & 0xFF) << 8;
+            // direct and system commands with the response bit cleared
+            byte type = batch[offset + 2];
+            if (type == 0x00 || type == 0x01) {
+                requestTimes.sent(batch[offset + 3], now);
+            }
+            offset += length + 2;
+        }
+    }
+
+    private void recordStopLatency(long latency) {
+        stopLatency.record(latency);
+        if (latency > STOP_LATENCY_BUDGET * 1000000L) {
+            Log.w(TAG, "brake written " + latency / 1000000L + " ms after the reading");
+        }
+    }
+
+    // receive messages from the UI, they are only encoded and queued here
     final Handler bluetoothMessageHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -20,6 +20,8 @@
 
 package com.bt;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Class for composing the proper messages for simple
@@ -27,260 +29,511 @@ package com.bt;
  * 
  * The LEGO MINDSTORM Specs for the Bluetooth communication protocol can be found on: <p/>
  * <code>http://www.microframeworkprojects.com/index.php?title=File:LEGO_MINDSTORMS_NXT_Direct_commands.pdf</code>
+ * <p/>
+ * Every telegram has a <code>put...Message(ByteBuffer, ...)</code> encoder writing it, including the
+ * 2 byte length prefix, at the current position of the given buffer. Nothing is allocated, so the
+ * encoders can write straight into the outbound buffer of the {@link BluetoothChannel}. The
+ * <code>get...Message(...)</code> factories return the telegram without prefix in a new array.
  */
 public class BluetoothMessage {
     @SuppressWarnings("unused")
 	private static final String TAG = "BluetoothMessage";
 
+    // length of the telegrams without prefix
+    private static final int BEEP_LENGTH = 6;
+    private static final int MOTOR_LENGTH = 12;
+    private static final int RESET_LENGTH = 4;
+    private static final int PROGRAM_LENGTH = 22;
+    private static final int FIND_NEXT_LENGTH = 3;
+    private static final int SET_INPUT_MODE_LENGTH = 5;
+    private static final int LS_WRITE_HEADER_LENGTH = 5;
+    private static final int LS_WRITE_LENGTH = 7;
+    /**
+     * Maximum number of bytes transmitted or received in one low speed transaction.
+     */
+    public static final int LS_MAX_DATA = 16;
+    // ultrasonic sensor: address of the sensor and register of the first distance
+    private static final byte[] LS_DISTANCE_REQUEST = { 0x02, 0x42 };
+    private static final int PORT_REQUEST_LENGTH = 3;
+    private static final int REQUEST_LENGTH = 2;
+    // SETOUTPUTSTATE mode bits and regulation modes
+    private static final int MODE_MOTORON_BRAKE = 0x03;
+    private static final int MODE_MOTORON_BRAKE_REGULATED = 0x07;
+    private static final int REGULATION_MOTOR_SPEED = 0x01;
+    private static final int REGULATION_MOTOR_SYNC = 0x02;
+
 	public static byte[] getBeepMessage(int frequency, int duration) {
-        byte[] message = new byte[6];
+        byte[] message = new byte[BEEP_LENGTH];
+        putBeep(ByteBuffer.wrap(message), frequency, duration);
+        return message;
+    }
 
+    public static void putBeepMessage(ByteBuffer buffer, int frequency, int duration) {
+        putLength(buffer, BEEP_LENGTH);
+        putBeep(buffer, frequency, duration);
+    }
+
+    private static void putBeep(ByteBuffer buffer, int frequency, int duration) {
         // Direct command telegram, no response
-        message[0] = (byte) 0x80;
-        message[1] = (byte) 0x03;
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x03);
         // Frequency for the tone, Hz (UWORD); Range: 200-14000 Hz
-        message[2] = (byte) frequency;
-        message[3] = (byte) (frequency >> 8);
+        putWord(buffer, frequency);
         // Duration of the tone, ms (UWORD)
-        message[4] = (byte) duration;
-        message[5] = (byte) (duration >> 8);
+        putWord(buffer, duration);
+    }
+
 
+    public static byte[] getMotorMessage(int motor, int speed) {
+        return getMotorMessage(motor, speed, 0);
+    }
+
+
+    public static byte[] getMotorMessage(int motor, int speed, int end) {
+        byte[] message = new byte[MOTOR_LENGTH];
+        putMotor(ByteBuffer.wrap(message), motor, speed, end);
         return message;
     }
 
+    public static void putMotorMessage(ByteBuffer buffer, int motor, int speed) {
+        putMotorMessage(buffer, motor, speed, 0);
+    }
 
-    public static byte[] getMotorMessage(int motor, int speed) {
-        byte[] message = new byte[12];
+    public static void putMotorMessage(ByteBuffer buffer, int motor, int speed, int end) {
+        putLength(buffer, MOTOR_LENGTH);
+        putMotor(buffer, motor, speed, end);
+    }
 
+    /**
+     * Returns a SETOUTPUTSTATE telegram running the motor synchronized with a second
+     * motor, which must get the same speed and turn ratio. A positive turn ratio slows
+     * the motor on the higher port: 50 stops it, 100 runs it backwards. A negative
+     * turn ratio does the same to the motor on the lower port.
+     *
+     * @param motor output port
+     * @param speed power within [-100,100], 0 stops the motor
+     * @param turnRatio turn ratio within [-100,100]
+     * @param end tacho limit in degrees, 0 runs forever
+     */
+    public static byte[] getSyncMotorMessage(int motor, int speed, int turnRatio, int end) {
+        byte[] message = new byte[MOTOR_LENGTH];
+        putSyncMotor(ByteBuffer.wrap(message), motor, speed, turnRatio, end);
+        return message;
+    }
+
+    public static void putSyncMotorMessage(ByteBuffer buffer, int motor, int speed,
+            int turnRatio, int end) {
+        putLength(buffer, MOTOR_LENGTH);
+        putSyncMotor(buffer, motor, speed, turnRatio, end);
+    }
+
+    /**
+     * Encodes a SETOUTPUTSTATE telegram braking the motor: regulated to zero power
+     * with the brake mode on, so the motor holds its position instead of coasting.
+     *
+     * @param motor output port
+     */
+    public static void putBrakeMessage(ByteBuffer buffer, int motor) {
+        putLength(buffer, MOTOR_LENGTH);
         // Direct command telegram, no response
-        message[0] = (byte) 0x80;
-        message[1] = (byte) 0x04;
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x04);
         // Output port
-        message[2] = (byte) motor;
+        buffer.put((byte) motor);
+        // Power 0
+        buffer.put((byte) 0);
+        // Mode byte (Bit-field): MOTORON + BREAK + REGULATED
+        buffer.put((byte) MODE_MOTORON_BRAKE_REGULATED);
+        // Regulation mode: REGULATION_MODE_MOTOR_SPEED
+        buffer.put((byte) REGULATION_MOTOR_SPEED);
+        // Turn Ratio
+        buffer.put((byte) 0);
+        // RunState: MOTOR_RUN_STATE_RUNNING
+        buffer.put((byte) 0x20);
+        // TachoLimit, 0: run forever
+        putLong(buffer, 0);
+    }
+
+    private static void putMotor(ByteBuffer buffer, int motor, int speed, int end) {
+        putMotor(buffer, motor, speed, MODE_MOTORON_BRAKE, REGULATION_MOTOR_SPEED, 0, end);
+    }
+
+    private static void putSyncMotor(ByteBuffer buffer, int motor, int speed, int turnRatio,
+            int end) {
+        putMotor(buffer, motor, speed, MODE_MOTORON_BRAKE_REGULATED, REGULATION_MOTOR_SYNC,
+                turnRatio, end);
+    }
+
+    private static void putMotor(ByteBuffer buffer, int motor, int speed, int mode,
+            int regulation, int turnRatio, int end) {
+        // Direct command telegram, no response
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x04);
+        // Output port
+        buffer.put((byte) motor);
 
         if (speed == 0) {
-            message[3] = 0;
-            message[4] = 0;
-            message[5] = 0;
-            message[6] = 0;
-            message[7] = 0;
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
 
         } else {
             // Power set option (Range: -100 - 100)
-            message[3] = (byte) speed;
-            // Mode byte (Bit-field): MOTORON + BREAK
-            message[4] = 0x03;
-            // Regulation mode: REGULATION_MODE_MOTOR_SPEED
-            message[5] = 0x01;
+            buffer.put((byte) speed);
+            // Mode byte (Bit-field): MOTORON + BREAK [+ REGULATED]
+            buffer.put((byte) mode);
+            // Regulation mode: REGULATION_MODE_MOTOR_SPEED or _MOTOR_SYNC
+            buffer.put((byte) regulation);
             // Turn Ratio (SBYTE; -100 - 100)
-            message[6] = 0x00;
+            buffer.put((byte) turnRatio);
             // RunState: MOTOR_RUN_STATE_RUNNING
-            message[7] = 0x20;
+            buffer.put((byte) 0x20);
         }
 
-        // TachoLimit: run forever
-        message[8] = 0;
-        message[9] = 0;
-        message[10] = 0;
-        message[11] = 0;
-
-        return message;
-
+        // TachoLimit, 0: run forever
+        putLong(buffer, end);
     }
 
 
-    public static byte[] getMotorMessage(int motor, int speed, int end) {
-        byte[] message = getMotorMessage(motor, speed);
-
-        // TachoLimit
-        message[8] = (byte) end;
-        message[9] = (byte) (end >> 8);
-        message[10] = (byte) (end >> 16);
-        message[11] = (byte) (end >> 24);
-
+    public static byte[] getResetMessage(int motor) {
+        byte[] message = new byte[RESET_LENGTH];
+        putReset(ByteBuffer.wrap(message), motor);
         return message;
     }
 
+    public static void putResetMessage(ByteBuffer buffer, int motor) {
+        putResetMessage(buffer, motor, false);
+    }
 
-    public static byte[] getResetMessage(int motor) {
-        byte[] message = new byte[4];
+    /**
+     * Encodes a RESETMOTORPOSITION telegram.
+     *
+     * @param motor output port
+     * @param relative true resets only the position relative to the last movement,
+     *        the rotation count is kept
+     */
+    public static void putResetMessage(ByteBuffer buffer, int motor, boolean relative) {
+        putLength(buffer, RESET_LENGTH);
+        putReset(buffer, motor, relative);
+    }
 
+    private static void putReset(ByteBuffer buffer, int motor) {
+        putReset(buffer, motor, false);
+    }
+
+    private static void putReset(ByteBuffer buffer, int motor, boolean relative) {
         // Direct command telegram, no response
-        message[0] = (byte) 0x80;
-        message[1] = (byte) 0x0A;
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x0A);
         // Output port
-        message[2] = (byte) motor;
-        // absolute position
-        message[3] = 0;
-
-        return message;
+        buffer.put((byte) motor);
+        // relative or absolute position
+        buffer.put((byte) (relative ? 1 : 0));
     }
 
 
     public static byte[] getStartProgramMessage(String programName) {
-        byte[] message = new byte[22];
+        byte[] message = new byte[PROGRAM_LENGTH];
+        putStartProgram(ByteBuffer.wrap(message), programName);
+        return message;
+    }
 
-        // Direct command telegram, no response
-        message[0] = (byte) 0x80;
-        message[1] = (byte) 0x00;
+    public static void putStartProgramMessage(ByteBuffer buffer, String programName) {
+        putLength(buffer, PROGRAM_LENGTH);
+        putStartProgram(buffer, programName);
+    }
 
-        // copy programName and end with 0 delimiter
-        for (int pos=0; pos<programName.length(); pos++)
-            message[2+pos] = (byte) programName.charAt(pos);
+    private static void putStartProgram(ByteBuffer buffer, String programName) {
+        // Direct command telegram, no response
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x00);
+        // programName, padded with 0 delimiters
+        putFileName(buffer, programName);
+    }
 
-        message[programName.length()+2] = 0;
 
+    public static byte[] getStopProgramMessage() {
+        byte[] message = new byte[REQUEST_LENGTH];
+        putStopProgram(ByteBuffer.wrap(message));
         return message;
     }
 
+    public static void putStopProgramMessage(ByteBuffer buffer) {
+        putLength(buffer, REQUEST_LENGTH);
+        putStopProgram(buffer);
+    }
 
-    public static byte[] getStopProgramMessage() {
-        byte[] message = new byte[2];
-
+    private static void putStopProgram(ByteBuffer buffer) {
         // Direct command telegram, no response
-        message[0] = (byte) 0x80;
-        message[1] = (byte) 0x01;
-
-        return message;
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0x01);
     }
     
     public static byte[] getProgramNameMessage() {
-        byte[] message = new byte[2];
+        byte[] message = new byte[REQUEST_LENGTH];
+        putProgramName(ByteBuffer.wrap(message));
+        return message;
+    }
 
+    public static void putProgramNameMessage(ByteBuffer buffer) {
+        putLength(buffer, REQUEST_LENGTH);
+        putProgramName(buffer);
+    }
+
+    private static void putProgramName(ByteBuffer buffer) {
         // Direct command telegram, with response
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x11;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x11);
+    }
 
+    public static byte[] getActorStateMessage(int motor) {
+        byte[] message = new byte[PORT_REQUEST_LENGTH];
+        putActorState(ByteBuffer.wrap(message), motor);
         return message;
     }
 
-    public static byte[] getActorStateMessage(int motor) {
-        byte[] message = new byte[3];
+    public static void putActorStateMessage(ByteBuffer buffer, int motor) {
+        putLength(buffer, PORT_REQUEST_LENGTH);
+        putActorState(buffer, motor);
+    }
 
+    private static void putActorState(ByteBuffer buffer, int motor) {
         // Direct command telegram, with response
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x06;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x06);
         // Output port
-        message[2] = (byte) motor;
+        buffer.put((byte) motor);
+    }
 
+    public static byte[] getSensorStateMessage(byte port) {
+        byte[] message = new byte[PORT_REQUEST_LENGTH];
+        putSensorState(ByteBuffer.wrap(message), port);
         return message;
     }
 
-    public static byte[] getSensorStateMessage(byte port) {
-        byte[] message = new byte[3];
+    public static void putSensorStateMessage(ByteBuffer buffer, byte port) {
+        putLength(buffer, PORT_REQUEST_LENGTH);
+        putSensorState(buffer, port);
+    }
 
+    private static void putSensorState(ByteBuffer buffer, byte port) {
         // Direct command telegram, with response
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x07;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x07);
         // Input port
-        message[2] = (byte) port;
+        buffer.put(port);
+    }
 
+    public static byte[] getFirmwareVersionMessage() {
+        byte[] message = new byte[REQUEST_LENGTH];
+        putFirmwareVersion(ByteBuffer.wrap(message));
         return message;
     }
 
-    public static byte[] getFirmwareVersionMessage() {
-        byte[] message = new byte[2];
+    public static void putFirmwareVersionMessage(ByteBuffer buffer) {
+        putLength(buffer, REQUEST_LENGTH);
+        putFirmwareVersion(buffer);
+    }
 
+    private static void putFirmwareVersion(ByteBuffer buffer) {
         // System command, reply required
-        message[0] = (byte) 0x01;
-        message[1] = (byte) 0x88;
+        buffer.put((byte) 0x01);
+        buffer.put((byte) 0x88);
+    }
+
 
+    public static byte[] getBatteryLevelMessage() {
+        byte[] message = new byte[REQUEST_LENGTH];
+        putBatteryLevel(ByteBuffer.wrap(message));
         return message;
     }
 
+    public static void putBatteryLevelMessage(ByteBuffer buffer) {
+        putLength(buffer, REQUEST_LENGTH);
+        putBatteryLevel(buffer);
+    }
 
-    public static byte[] getFindFilesMessage(boolean findFirst, int handle, String searchString) {
-        byte[] message;
+    private static void putBatteryLevel(ByteBuffer buffer) {
+        // Direct command, reply required
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x0B);
+    }
 
-        if (findFirst)
-            message = new byte[22];
+    public static byte[] getFindFilesMessage(boolean findFirst, int handle, String searchString) {
+        byte[] message = new byte[findFirst ? PROGRAM_LENGTH : FIND_NEXT_LENGTH];
+        putFindFiles(ByteBuffer.wrap(message), findFirst, handle, searchString);
+        return message;
+    }
 
-        else
-            message = new byte[3];
+    public static void putFindFilesMessage(ByteBuffer buffer, boolean findFirst, int handle, String searchString) {
+        putLength(buffer, findFirst ? PROGRAM_LENGTH : FIND_NEXT_LENGTH);
+        putFindFiles(buffer, findFirst, handle, searchString);
+    }
 
+    private static void putFindFiles(ByteBuffer buffer, boolean findFirst, int handle, String searchString) {
         // System command, reply required
-        message[0] = (byte) 0x01;
+        buffer.put((byte) 0x01);
 
         if (findFirst) {
-            message[1] = (byte) 0x86;
-
-            // copy searchString and end with 0 delimiter
-            for (int pos=0; pos<searchString.length(); pos++)
-                message[2+pos] = (byte) searchString.charAt(pos);
-
-            message[searchString.length()+2] = 0;
+            buffer.put((byte) 0x86);
+            // searchString, padded with 0 delimiters
+            putFileName(buffer, searchString);
 
         } else {
-            message[1] = (byte) 0x87;
-            message[2] = (byte) handle;
+            buffer.put((byte) 0x87);
+            buffer.put((byte) handle);
         }
+    }
 
+    public static byte[] getSetInputModeMessage(byte inputPort, byte inputType, byte inputMode) {
+        byte[] message = new byte[SET_INPUT_MODE_LENGTH];
+        putSetInputMode(ByteBuffer.wrap(message), inputPort, inputType, inputMode);
         return message;
     }
 
-    public static byte[] getSetInputModeMessage(byte inputPort, byte inputType, byte inputMode) {
-        byte[] message = new byte[5];
+    public static void putSetInputModeMessage(ByteBuffer buffer, byte inputPort, byte inputType, byte inputMode) {
+        putLength(buffer, SET_INPUT_MODE_LENGTH);
+        putSetInputMode(buffer, inputPort, inputType, inputMode);
+    }
 
+    private static void putSetInputMode(ByteBuffer buffer, byte inputPort, byte inputType, byte inputMode) {
         // 2 byte command
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x05;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x05);
         
         // input port
-        message[2] = (byte) inputPort;
+        buffer.put(inputPort);
         
         // sensor type
-        message[3] = (byte) inputType;
-        message[4] = (byte) inputMode;
-
-        return message;
+        buffer.put(inputType);
+        buffer.put(inputMode);
     }
     
     public static byte[] getSetLSWriteMessage(byte inputPort) {
-        byte[] message = new byte[7];
+        byte[] message = new byte[LS_WRITE_LENGTH];
+        putSetLSWrite(ByteBuffer.wrap(message), inputPort, LS_DISTANCE_REQUEST, 1);
+        return message;
+    }
+
+    public static void putSetLSWriteMessage(ByteBuffer buffer, byte inputPort) {
+        putLength(buffer, LS_WRITE_LENGTH);
+        putSetLSWrite(buffer, inputPort, LS_DISTANCE_REQUEST, 1);
+    }
 
+    public static byte[] getSetLSWriteMessage(byte inputPort, byte[] data, int receiveLength) {
+        checkLSLengths(data, receiveLength);
+        byte[] message = new byte[LS_WRITE_HEADER_LENGTH + data.length];
+        putSetLSWrite(ByteBuffer.wrap(message), inputPort, data, receiveLength);
+        return message;
+    }
+
+    /**
+     * Writes a LSWRITE telegram transmitting arbitrary data to a low speed (I2C) sensor.
+     *
+     * @param buffer buffer to write to
+     * @param inputPort sensor port
+     * @param data bytes to transmit, starting with the I2C address, at most {@linkplain #LS_MAX_DATA}
+     * @param receiveLength number of bytes to receive, at most {@linkplain #LS_MAX_DATA}
+     */
+    public static void putSetLSWriteMessage(ByteBuffer buffer, byte inputPort, byte[] data,
+            int receiveLength) {
+        checkLSLengths(data, receiveLength);
+        putLength(buffer, LS_WRITE_HEADER_LENGTH + data.length);
+        putSetLSWrite(buffer, inputPort, data, receiveLength);
+    }
+
+    private static void checkLSLengths(byte[] data, int receiveLength) {
+        if (data.length > LS_MAX_DATA || receiveLength < 0 || receiveLength > LS_MAX_DATA) {
+            throw new IllegalArgumentException("at most " + LS_MAX_DATA
+                    + " bytes per low speed transaction");
+        }
+    }
+
+    private static void putSetLSWrite(ByteBuffer buffer, byte inputPort, byte[] data,
+            int receiveLength) {
         // 2 byte command
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x0F;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x0F);
         
         // input port
-        message[2] = (byte) inputPort;
+        buffer.put(inputPort);
         
         // data length (transmit data)
-        message[3] = (byte) 2;
+        buffer.put((byte) data.length);
         
         // data length (data to receive)
-        message[4] = (byte) 1;
+        buffer.put((byte) receiveLength);
         
-        // 2 bytes message to transmit
-        message[5] = 0x02;
-        message[6] = 0x42;
-
-        return message;
+        // message to transmit
+        buffer.put(data);
     }
     
     public static byte[] getSetLSReadMessage(byte inputPort) {
-        byte[] message = new byte[3];
+        byte[] message = new byte[PORT_REQUEST_LENGTH];
+        putSetLSRead(ByteBuffer.wrap(message), inputPort);
+        return message;
+    }
 
+    public static void putSetLSReadMessage(ByteBuffer buffer, byte inputPort) {
+        putLength(buffer, PORT_REQUEST_LENGTH);
+        putSetLSRead(buffer, inputPort);
+    }
+
+    private static void putSetLSRead(ByteBuffer buffer, byte inputPort) {
         // 2 byte command
-        message[0] = (byte) 0x00;
-        message[1] = (byte) 0x10;
+        buffer.put((byte) 0x00);
+        buffer.put((byte) 0x10);
         
         // input port
-        message[2] = (byte) inputPort;
-
-        return message;
+        buffer.put(inputPort);
     }
     
     public static byte[] getSetLSStatusMessage(byte sensorPort) {
-	    byte[] message = new byte[3];
-	
+	    byte[] message = new byte[PORT_REQUEST_LENGTH];
+	    putSetLSStatus(ByteBuffer.wrap(message), sensorPort);
+	    return message;
+	}
+
+    public static void putSetLSStatusMessage(ByteBuffer buffer, byte sensorPort) {
+        putLength(buffer, PORT_REQUEST_LENGTH);
+        putSetLSStatus(buffer, sensorPort);
+    }
+
+    private static void putSetLSStatus(ByteBuffer buffer, byte sensorPort) {
 	    // 2 byte command
-	    message[0] = (byte) 0x00;
-	    message[1] = (byte) 0x0E;
+	    buffer.put((byte) 0x00);
+	    buffer.put((byte) 0x0E);
 	    
 	    // input port
-	    message[2] = (byte) sensorPort;
-	    return message;
+	    buffer.put(sensorPort);
 	}
 
+    // the length prefix is always little endian, independent of the buffer byte order
+    private static void putLength(ByteBuffer buffer, int length) {
+        putWord(buffer, length);
+    }
+
+    private static void putWord(ByteBuffer buffer, int value) {
+        buffer.put((byte) value);
+        buffer.put((byte) (value >> 8));
+    }
+
+    private static void putLong(ByteBuffer buffer, int value) {
+        buffer.put((byte) value);
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 24));
+    }
+
+    // file names are 19 characters plus 0 delimiter, the rest is padded with 0
+    private static void putFileName(ByteBuffer buffer, String name) {
+        int pos = 0;
+        for (; pos < name.length() && pos < PROGRAM_LENGTH - 3; pos++)
+            buffer.put((byte) name.charAt(pos));
+        for (; pos < PROGRAM_LENGTH - 2; pos++)
+            buffer.put((byte) 0);
+    }
+
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
+import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.OutputState;
+
+/**
+ * Adapter turning the typed events back into the message bundles the
+ * {@link BluetoothChannel} used to send, for callers still relying on
+ * {@link Handler.Callback} resp.
+ * {@link com.bt.mindstorm.LegoBrickSensorListener}.
+ */
+public class BundleEventAdapter implements LegoBrickEventListener {
+	private final Handler.Callback callback;
+
+	public BundleEventAdapter(Handler.Callback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	public void onInputValues(InputValues values) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", NXT.GET_INPUTSTATE);
+        myBundle.putByte("sensorport", values.getPort());
+        myBundle.putByte("sensortype", values.getSensorType());
+        myBundle.putByte("sensormode", values.getSensorMode());
+        myBundle.putBoolean("valid", values.isValid());
+        myBundle.putBoolean("calibrated", values.isCalibrated());
+        myBundle.putInt("rawValue", values.getRawValue());
+        myBundle.putInt("normalizedValue", values.getNormalizedValue());
+        myBundle.putShort("value", values.getScaledValue());
+        myBundle.putShort("calibratedValue", values.getCalibratedValue());
+        sendBundle(myBundle);
+	}
+
+	@Override
+	public void onOutputState(OutputState state) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", NXT.MOTOR_STATE);
+        sendBundle(myBundle);
+	}
+
+	@Override
+	public void onLowSpeedStatus(LowSpeedReply reply) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", NXT.LSSTATUS);
+        myBundle.putByte("status", reply.getStatus());
+        myBundle.putByte("bytesReady", (byte) reply.getCount());
+        sendBundle(myBundle);
+	}
+
+	@Override
+	public void onLowSpeedWrite(LowSpeedReply reply) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", NXT.LSWRITE);
+        myBundle.putByte("status", reply.getStatus());
+        sendBundle(myBundle);
+	}
+
+	@Override
+	public void onLowSpeedRead(LowSpeedReply reply) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", NXT.LSREAD);
+        myBundle.putByte("status", reply.getStatus());
+        myBundle.putByte("bytesRead", (byte) reply.getCount());
+        myBundle.putByte("data", reply.getData(0));
+        // all bytes read, the first one is also found as "data"
+        myBundle.putByteArray("dataBytes", reply.getData());
+        sendBundle(myBundle);
+	}
+
+	@Override
+	public void onConnectionStateChanged(int state, String text) {
+        Bundle myBundle = new Bundle();
+        myBundle.putInt("message", state);
+        if (text != null) {
+            myBundle.putString("toastText", text);
+        }
+        sendBundle(myBundle);
+	}
+
+	private void sendBundle(Bundle myBundle) {
+        Message myMessage = Message.obtain();
+        myMessage.setData(myBundle);
+        callback.handleMessage(myMessage);
+    }
+}
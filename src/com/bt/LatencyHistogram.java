@@ -0,0 +1,152 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed number of power of two buckets:
+ * bucket 0 counts latencies below 1 microsecond, bucket i those from
+ * 2<sup>i-1</sup> up to 2<sup>i</sup> microseconds, the last bucket
+ * everything longer. Recording is thread safe and does not allocate.
+ */
+public class LatencyHistogram {
+	public static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucketOf(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	public long getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMicros.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile.
+	 * 
+	 * @param percentile
+	 *            percentile within [0,100]
+	 * @return upper limit of the bucket holding the percentile in
+	 *         microseconds, 0 if nothing has been recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		getCounts(snapshot);
+		return getPercentileMicros(snapshot, percentile, getMaxMicros());
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of copied bucket counts.
+	 * 
+	 * @param buckets
+	 *            counts as copied by {@linkplain #getCounts(long[])}
+	 * @param percentile
+	 *            percentile within [0,100]
+	 * @param maxMicros
+	 *            longest latency, returned for the last bucket
+	 * @return upper limit of the bucket holding the percentile in
+	 *         microseconds, 0 if nothing has been recorded
+	 */
+	public static long getPercentileMicros(long[] buckets, double percentile, long maxMicros) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += buckets[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return getBucketLimitMicros(i);
+			}
+		}
+		return maxMicros;
+	}
+
+	/**
+	 * Copies the bucket counts.
+	 * 
+	 * @param buckets
+	 *            receives the counts, at least {@linkplain #BUCKETS} elements
+	 */
+	public void getCounts(long[] buckets) {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = counts.get(i);
+		}
+	}
+
+	/**
+	 * Returns the exclusive upper limit of a bucket.
+	 * 
+	 * @param bucket
+	 *            bucket index
+	 * @return limit in microseconds
+	 */
+	public static long getBucketLimitMicros(int bucket) {
+		return 1L << bucket;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	private static int bucketOf(long micros) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50<"
+				+ getPercentileMicros(50) + "us, p99<" + getPercentileMicros(99) + "us, max="
+				+ getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters of a bluetooth link: telegrams and bytes in both directions, the
+ * round trip time per reply opcode, the high water marks of the outbound
+ * queue and the requests in flight, send and receive errors and connections.
+ * <p/>
+ * The channel records into it on its reader and writer threads without
+ * allocating, except for the histogram created on the first reply of an
+ * opcode. {@linkplain #getSnapshot()} copies all values for display or
+ * logging. One instance can be shared by the channels of successive
+ * connections, to count reconnects.
+ */
+public class LinkMetrics {
+	private final AtomicLong telegramsSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong batchesSent = new AtomicLong();
+	private final AtomicLong telegramsReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong receiveErrors = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong outboundHighWater = new AtomicLong();
+	private final AtomicLong inFlightHighWater = new AtomicLong();
+	private final AtomicReferenceArray<LatencyHistogram> replyLatency = new AtomicReferenceArray<LatencyHistogram>(
+			256);
+
+	void recordSent(int telegrams, int bytes) {
+		batchesSent.incrementAndGet();
+		telegramsSent.addAndGet(telegrams);
+		bytesSent.addAndGet(bytes);
+	}
+
+	void recordReceived(int bytes) {
+		telegramsReceived.incrementAndGet();
+		bytesReceived.addAndGet(bytes);
+	}
+
+	void recordReply(int opcode, long nanos) {
+		LatencyHistogram histogram = replyLatency.get(opcode & 0xFF);
+		if (histogram == null) {
+			replyLatency.compareAndSet(opcode & 0xFF, null, new LatencyHistogram());
+			histogram = replyLatency.get(opcode & 0xFF);
+		}
+		histogram.record(nanos);
+	}
+
+	void recordSendError() {
+		sendErrors.incrementAndGet();
+	}
+
+	void recordReceiveError() {
+		receiveErrors.incrementAndGet();
+	}
+
+	void recordConnect() {
+		connects.incrementAndGet();
+	}
+
+	void recordOutboundDepth(int depth) {
+		raise(outboundHighWater, depth);
+	}
+
+	void recordInFlight(int inFlight) {
+		raise(inFlightHighWater, inFlight);
+	}
+
+	private static void raise(AtomicLong highWater, long value) {
+		long current = highWater.get();
+		while (value > current && !highWater.compareAndSet(current, value)) {
+			current = highWater.get();
+		}
+	}
+
+	/**
+	 * Returns the round trip times of the requests answered with the given
+	 * opcode, from writing the request to the arrival of its reply. All
+	 * requests are timed, also the ones nobody waits for.
+	 * 
+	 * @param opcode
+	 *            reply opcode
+	 * @return the histogram or null if no such reply has arrived yet
+	 */
+	public LatencyHistogram getReplyLatency(int opcode) {
+		return replyLatency.get(opcode & 0xFF);
+	}
+
+	/**
+	 * Copies all values.
+	 * 
+	 * @return the snapshot
+	 */
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Sets all counters and histograms back to 0.
+	 */
+	public void reset() {
+		telegramsSent.set(0);
+		bytesSent.set(0);
+		batchesSent.set(0);
+		telegramsReceived.set(0);
+		bytesReceived.set(0);
+		sendErrors.set(0);
+		receiveErrors.set(0);
+		connects.set(0);
+		outboundHighWater.set(0);
+		inFlightHighWater.set(0);
+		for (int i = 0; i < replyLatency.length(); i++) {
+			LatencyHistogram histogram = replyLatency.get(i);
+			if (histogram != null) {
+				histogram.reset();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+	/**
+	 * Values of the metrics at one point in time.
+	 */
+	public static class Snapshot {
+		private final long time = System.currentTimeMillis();
+		private final long telegramsSent;
+		private final long bytesSent;
+		private final long batchesSent;
+		private final long telegramsReceived;
+		private final long bytesReceived;
+		private final long sendErrors;
+		private final long receiveErrors;
+		private final long connects;
+		private final long outboundHighWater;
+		private final long inFlightHighWater;
+		// bucket counts and maximum per reply opcode, null if none arrived
+		private final long[][] latencyBuckets = new long[256][];
+		private final long[] latencyMax = new long[256];
+		private final long[] latencyMean = new long[256];
+
+		Snapshot(LinkMetrics metrics) {
+			telegramsSent = metrics.telegramsSent.get();
+			bytesSent = metrics.bytesSent.get();
+			batchesSent = metrics.batchesSent.get();
+			telegramsReceived = metrics.telegramsReceived.get();
+			bytesReceived = metrics.bytesReceived.get();
+			sendErrors = metrics.sendErrors.get();
+			receiveErrors = metrics.receiveErrors.get();
+			connects = metrics.connects.get();
+			outboundHighWater = metrics.outboundHighWater.get();
+			inFlightHighWater = metrics.inFlightHighWater.get();
+			for (int i = 0; i < latencyBuckets.length; i++) {
+				LatencyHistogram histogram = metrics.replyLatency.get(i);
+				if (histogram != null) {
+					latencyBuckets[i] = new long[LatencyHistogram.BUCKETS];
+					histogram.getCounts(latencyBuckets[i]);
+					latencyMax[i] = histogram.getMaxMicros();
+					latencyMean[i] = histogram.getMeanMicros();
+				}
+			}
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public long getTelegramsSent() {
+			return telegramsSent;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * Returns the number of writes to the socket, each carrying one or
+		 * more telegrams.
+		 * 
+		 * @return number of batches
+		 */
+		public long getBatchesSent() {
+			return batchesSent;
+		}
+
+		public long getTelegramsReceived() {
+			return telegramsReceived;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public long getSendErrors() {
+			return sendErrors;
+		}
+
+		public long getReceiveErrors() {
+			return receiveErrors;
+		}
+
+		public long getConnects() {
+			return connects;
+		}
+
+		/**
+		 * Returns the number of connections after the first one.
+		 * 
+		 * @return reconnects
+		 */
+		public long getReconnects() {
+			return Math.max(0, connects - 1);
+		}
+
+		/**
+		 * Returns the largest number of telegrams queued for sending at once.
+		 * 
+		 * @return outbound queue high water mark
+		 */
+		public long getOutboundHighWater() {
+			return outboundHighWater;
+		}
+
+		/**
+		 * Returns the largest number of requests waiting for their reply at
+		 * once.
+		 * 
+		 * @return in flight high water mark
+		 */
+		public long getInFlightHighWater() {
+			return inFlightHighWater;
+		}
+
+		/**
+		 * Returns the number of round trips measured for a reply opcode.
+		 * 
+		 * @param opcode
+		 *            reply opcode
+		 * @return number of replies
+		 */
+		public long getReplyCount(int opcode) {
+			long[] buckets = latencyBuckets[opcode & 0xFF];
+			long n = 0;
+			if (buckets != null) {
+				for (int i = 0; i < buckets.length; i++) {
+					n += buckets[i];
+				}
+			}
+			return n;
+		}
+
+		public long getReplyMeanMicros(int opcode) {
+			return latencyMean[opcode & 0xFF];
+		}
+
+		public long getReplyMaxMicros(int opcode) {
+			return latencyMax[opcode & 0xFF];
+		}
+
+		/**
+		 * Returns an upper bound of a round trip time percentile.
+		 * 
+		 * @param opcode
+		 *            reply opcode
+		 * @param percentile
+		 *            percentile within [0,100]
+		 * @return the bound in microseconds, 0 if no reply arrived
+		 */
+		public long getReplyPercentileMicros(int opcode, double percentile) {
+			long[] buckets = latencyBuckets[opcode & 0xFF];
+			if (buckets == null) {
+				return 0;
+			}
+			return LatencyHistogram.getPercentileMicros(buckets, percentile,
+					latencyMax[opcode & 0xFF]);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append("sent ").append(telegramsSent).append(" telegrams/").append(bytesSent)
+					.append(" bytes in ").append(batchesSent).append(" writes, received ")
+					.append(telegramsReceived).append(" telegrams/").append(bytesReceived)
+					.append(" bytes, errors send=").append(sendErrors).append(" receive=")
+					.append(receiveErrors).append(", reconnects=").append(getReconnects())
+					.append(", high water queue=").append(outboundHighWater).append(" in flight=")
+					.append(inFlightHighWater);
+			for (int i = 0; i < latencyBuckets.length; i++) {
+				if (latencyBuckets[i] != null) {
+					text.append(", 0x").append(Integer.toHexString(i)).append(": n=")
+							.append(getReplyCount(i)).append(" p50<")
+							.append(getReplyPercentileMicros(i, 50)).append("us p99<")
+							.append(getReplyPercentileMicros(i, 99)).append("us max=")
+							.append(latencyMax[i]).append("us");
+				}
+			}
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Book keeping of requests waiting for their reply. The brick answers direct
+ * commands in the order it receives them, so replies are correlated in FIFO
+ * order per reply opcode. Replies carrying a port are only matched to a
+ * request for the same port.
+ * <p/>
+ * The number of requests in flight is limited by the pipelining depth, every
+ * request fails with a {@link TimeoutException} if its reply does not arrive
+ * in time.
+ */
+public class PendingReplies {
+	/**
+	 * Port value for requests whose reply does not carry a port.
+	 */
+	public static final int ANY_PORT = -1;
+
+	// one timer thread for all channels, reconnecting does not add threads
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "NXT reply timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final LinkedList<Pending>[] queues;
+	private int depth;
+	private int inFlight = 0;
+	private volatile LinkMetrics metrics;
+
+	private class Pending implements Runnable {
+		final int opcode;
+		final int port;
+		final ReplyFuture<?> future;
+		ScheduledFuture<?> timeout;
+
+		Pending(int opcode, int port, ReplyFuture<?> future) {
+			this.opcode = opcode;
+			this.port = port;
+			this.future = future;
+		}
+
+		// timeout expired
+		@Override
+		public void run() {
+			if (remove(this)) {
+				future.fail(new TimeoutException("no reply for opcode 0x"
+						+ Integer.toHexString(opcode)));
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PendingReplies(int depth) {
+		this.depth = depth;
+		queues = new LinkedList[256];
+	}
+
+	/**
+	 * Sets the maximum number of requests in flight.
+	 *
+	 * @param depth
+	 *            pipelining depth
+	 */
+	public synchronized void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Sets the metrics receiving the number of requests in flight.
+	 *
+	 * @param metrics
+	 *            the metrics or null
+	 */
+	public void setLinkMetrics(LinkMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Registers a request, must be called before the request is sent.
+	 *
+	 * @param opcode
+	 *            opcode of the expected reply
+	 * @param port
+	 *            port the reply refers to or {@linkplain #ANY_PORT}
+	 * @param timeoutMillis
+	 *            time to wait for the reply
+	 * @return future to complete with the reply, already failed if the
+	 *         pipelining depth is exhausted
+	 */
+	public <T> ReplyFuture<T> register(int opcode, int port, long timeoutMillis) {
+		ReplyFuture<T> future = new ReplyFuture<T>();
+		Pending pending = new Pending(opcode & 0xFF, port, future);
+		synchronized (this) {
+			if (inFlight >= depth) {
+				future.fail(new RejectedExecutionException("pipelining depth of " + depth
+						+ " exhausted"));
+				return future;
+			}
+			LinkedList<Pending> queue = queues[pending.opcode];
+			if (queue == null) {
+				queue = new LinkedList<Pending>();
+				queues[pending.opcode] = queue;
+			}
+			queue.add(pending);
+			inFlight++;
+			LinkMetrics linkMetrics = metrics;
+			if (linkMetrics != null) {
+				linkMetrics.recordInFlight(inFlight);
+			}
+			pending.timeout = TIMER.schedule(pending, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+
+	/**
+	 * Removes the oldest request waiting for a reply with given opcode and
+	 * port.
+	 *
+	 * @param opcode
+	 *            reply opcode
+	 * @param port
+	 *            port found in the reply or {@linkplain #ANY_PORT}
+	 * @return future of the request or null if none is waiting
+	 */
+	public ReplyFuture<?> poll(int opcode, int port) {
+		Pending found = null;
+		synchronized (this) {
+			LinkedList<Pending> queue = queues[opcode & 0xFF];
+			if (queue == null || queue.isEmpty()) {
+				return null;
+			}
+			for (Iterator<Pending> it = queue.iterator(); it.hasNext();) {
+				Pending pending = it.next();
+				if (port == ANY_PORT || pending.port == ANY_PORT || pending.port == port) {
+					it.remove();
+					inFlight--;
+					found = pending;
+					break;
+				}
+			}
+		}
+		if (found == null) {
+			return null;
+		}
+		found.timeout.cancel(false);
+		return found.future;
+	}
+
+	/**
+	 * Returns the port of the oldest request waiting for a reply with given
+	 * opcode. Used for replies that do not carry their port.
+	 *
+	 * @param opcode
+	 *            reply opcode
+	 * @return the port or {@linkplain #ANY_PORT} if no request is waiting
+	 */
+	public synchronized int peekPort(int opcode) {
+		LinkedList<Pending> queue = queues[opcode & 0xFF];
+		if (queue == null || queue.isEmpty()) {
+			return ANY_PORT;
+		}
+		return queue.getFirst().port;
+	}
+
+	/**
+	 * Removes a request that could not be sent and fails its future.
+	 *
+	 * @param future
+	 *            future returned by {@linkplain #register(int, int, long)}
+	 * @param failure
+	 *            the reason
+	 */
+	public void abort(ReplyFuture<?> future, Throwable failure) {
+		Pending found = null;
+		synchronized (this) {
+			for (int i = 0; i < queues.length && found == null; i++) {
+				if (queues[i] != null) {
+					for (Pending pending : queues[i]) {
+						if (pending.future == future) {
+							found = pending;
+							break;
+						}
+					}
+				}
+			}
+			if (found == null || !remove(found)) {
+				return;
+			}
+		}
+		found.timeout.cancel(false);
+		future.fail(failure);
+	}
+
+	/**
+	 * Fails all waiting requests, e.g. when the connection is lost.
+	 *
+	 * @param failure
+	 *            the reason
+	 */
+	public void failAll(Throwable failure) {
+		LinkedList<Pending> failed = new LinkedList<Pending>();
+		synchronized (this) {
+			for (int i = 0; i < queues.length; i++) {
+				if (queues[i] != null) {
+					failed.addAll(queues[i]);
+					queues[i].clear();
+				}
+			}
+			inFlight = 0;
+		}
+		for (Pending pending : failed) {
+			pending.timeout.cancel(false);
+			pending.future.fail(failure);
+		}
+	}
+
+	private synchronized boolean remove(Pending pending) {
+		LinkedList<Pending> queue = queues[pending.opcode];
+		if (queue != null && queue.remove(pending)) {
+			inFlight--;
+			return true;
+		}
+		return false;
+	}
+}
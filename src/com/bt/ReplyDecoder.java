@@ -0,0 +1,302 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import com.bt.ReplyView.BatteryLevelView;
+import com.bt.ReplyView.FileFindView;
+import com.bt.ReplyView.FirmwareVersionView;
+import com.bt.ReplyView.InputValuesView;
+import com.bt.ReplyView.KeepAliveView;
+import com.bt.ReplyView.LowSpeedReadView;
+import com.bt.ReplyView.LowSpeedStatusView;
+import com.bt.ReplyView.MessageReadView;
+import com.bt.ReplyView.OutputStateView;
+import com.bt.ReplyView.ProgramNameView;
+
+/**
+ * Decodes reply telegrams with a table keyed by opcode. Every telegram is
+ * checked for its length and status and results in exactly one handler call:
+ * <ul>
+ * <li>a typed view for the replies with a payload,</li>
+ * <li>{@linkplain Handler#onStatus(ReplyView)} for replies carrying nothing
+ * but their status, e.g. SETINPUTMODE or LSWRITE,</li>
+ * <li>{@linkplain Handler#onError(ReplyView)} if the brick reports an error
+ * for a reply with a payload, the payload is not valid then,</li>
+ * <li>{@linkplain Handler#onMalformed(byte[], int)} for anything else.</li>
+ * </ul>
+ * The views are reused, a decoder must only be used by one thread.
+ */
+public class ReplyDecoder {
+    private static final byte REPLY = 0x02;
+    // smallest reply: type, opcode, status
+    private static final int MIN_LENGTH = 3;
+    // outcomes of a decode
+    private static final int MALFORMED = 0;
+    private static final int STATUS = 1;
+    private static final int ERROR = 2;
+    private static final int DECODED = 3;
+
+    /**
+     * Receives the decoded replies, views are only valid during the call.
+     */
+    public interface Handler {
+        void onInputValues(InputValuesView reply);
+
+        void onOutputState(OutputStateView reply);
+
+        void onBatteryLevel(BatteryLevelView reply);
+
+        void onKeepAlive(KeepAliveView reply);
+
+        void onLowSpeedStatus(LowSpeedStatusView reply);
+
+        void onLowSpeedRead(LowSpeedReadView reply);
+
+        void onProgramName(ProgramNameView reply);
+
+        void onMessageRead(MessageReadView reply);
+
+        void onFirmwareVersion(FirmwareVersionView reply);
+
+        void onFileFound(FileFindView reply);
+
+        /**
+         * Called for replies carrying nothing but their status.
+         */
+        void onStatus(ReplyView reply);
+
+        /**
+         * Called if the brick reports an error for a reply with payload.
+         */
+        void onError(ReplyView reply);
+
+        /**
+         * Called for telegrams that are no reply or too short.
+         */
+        void onMalformed(byte[] telegram, int length);
+    }
+
+    /**
+     * Handler ignoring all replies, to extend by handlers interested in a few.
+     */
+    public static class HandlerAdapter implements Handler {
+        public void onInputValues(InputValuesView reply) {
+        }
+
+        public void onOutputState(OutputStateView reply) {
+        }
+
+        public void onBatteryLevel(BatteryLevelView reply) {
+        }
+
+        public void onKeepAlive(KeepAliveView reply) {
+        }
+
+        public void onLowSpeedStatus(LowSpeedStatusView reply) {
+        }
+
+        public void onLowSpeedRead(LowSpeedReadView reply) {
+        }
+
+        public void onProgramName(ProgramNameView reply) {
+        }
+
+        public void onMessageRead(MessageReadView reply) {
+        }
+
+        public void onFirmwareVersion(FirmwareVersionView reply) {
+        }
+
+        public void onFileFound(FileFindView reply) {
+        }
+
+        public void onStatus(ReplyView reply) {
+        }
+
+        public void onError(ReplyView reply) {
+        }
+
+        public void onMalformed(byte[] telegram, int length) {
+        }
+    }
+
+    // decoding of one opcode
+    private abstract static class Entry {
+        final int length;
+        // the status is part of the payload, e.g. pending for LSGETSTATUS
+        final boolean statusIsPayload;
+        final ReplyView view;
+
+        Entry(int length, boolean statusIsPayload, ReplyView view) {
+            this.length = length;
+            this.statusIsPayload = statusIsPayload;
+            this.view = view;
+        }
+
+        abstract void deliver(Handler handler);
+    }
+
+    private final Entry[] table = new Entry[256];
+    private final ReplyView statusView = new ReplyView();
+    // outcome of the last decode, for redelivery
+    private Entry lastEntry;
+    private byte[] lastTelegram;
+    private int lastLength;
+    private int lastOutcome;
+    // written by the decoding thread only
+    private volatile long malformedCount;
+    private volatile long errorCount;
+
+    public ReplyDecoder() {
+        final InputValuesView inputValues = new InputValuesView();
+        table[0x07] = new Entry(InputValuesView.LENGTH, false, inputValues) {
+            void deliver(Handler handler) {
+                handler.onInputValues(inputValues);
+            }
+        };
+        final OutputStateView outputState = new OutputStateView();
+        table[0x06] = new Entry(OutputStateView.LENGTH, false, outputState) {
+            void deliver(Handler handler) {
+                handler.onOutputState(outputState);
+            }
+        };
+        final BatteryLevelView batteryLevel = new BatteryLevelView();
+        table[0x0B] = new Entry(BatteryLevelView.LENGTH, false, batteryLevel) {
+            void deliver(Handler handler) {
+                handler.onBatteryLevel(batteryLevel);
+            }
+        };
+        final KeepAliveView keepAlive = new KeepAliveView();
+        table[0x0D] = new Entry(KeepAliveView.LENGTH, false, keepAlive) {
+            void deliver(Handler handler) {
+                handler.onKeepAlive(keepAlive);
+            }
+        };
+        final LowSpeedStatusView lowSpeedStatus = new LowSpeedStatusView();
+        table[0x0E] = new Entry(LowSpeedStatusView.LENGTH, true, lowSpeedStatus) {
+            void deliver(Handler handler) {
+                handler.onLowSpeedStatus(lowSpeedStatus);
+            }
+        };
+        final LowSpeedReadView lowSpeedRead = new LowSpeedReadView();
+        table[0x10] = new Entry(LowSpeedReadView.LENGTH, true, lowSpeedRead) {
+            void deliver(Handler handler) {
+                handler.onLowSpeedRead(lowSpeedRead);
+            }
+        };
+        final ProgramNameView programName = new ProgramNameView();
+        table[0x11] = new Entry(ProgramNameView.LENGTH, false, programName) {
+            void deliver(Handler handler) {
+                handler.onProgramName(programName);
+            }
+        };
+        final MessageReadView messageRead = new MessageReadView();
+        table[0x13] = new Entry(MessageReadView.LENGTH, false, messageRead) {
+            void deliver(Handler handler) {
+                handler.onMessageRead(messageRead);
+            }
+        };
+        final FileFindView fileFind = new FileFindView();
+        Entry find = new Entry(FileFindView.LENGTH, false, fileFind) {
+            void deliver(Handler handler) {
+                handler.onFileFound(fileFind);
+            }
+        };
+        table[0x86] = find;
+        table[0x87] = find;
+        final FirmwareVersionView firmwareVersion = new FirmwareVersionView();
+        table[0x88] = new Entry(FirmwareVersionView.LENGTH, false, firmwareVersion) {
+            void deliver(Handler handler) {
+                handler.onFirmwareVersion(firmwareVersion);
+            }
+        };
+        // all other opcodes reply with their status only
+    }
+
+    /**
+     * Decodes a telegram and passes it to the handler.
+     *
+     * @param telegram the reply, without length prefix
+     * @param length length of the reply
+     * @param handler handler to call
+     */
+    public void decode(byte[] telegram, int length, Handler handler) {
+        lastTelegram = telegram;
+        lastLength = length;
+        lastEntry = null;
+        if (length < MIN_LENGTH || telegram[0] != REPLY) {
+            malformedCount++;
+            lastOutcome = MALFORMED;
+        } else {
+            Entry entry = table[telegram[1] & 0xFF];
+            statusView.wrap(telegram, length);
+            if (entry == null) {
+                lastOutcome = STATUS;
+            } else if (telegram[2] != 0 && (!entry.statusIsPayload || length < entry.length)) {
+                errorCount++;
+                lastOutcome = ERROR;
+            } else if (length < entry.length) {
+                malformedCount++;
+                lastOutcome = MALFORMED;
+            } else {
+                entry.view.wrap(telegram, length);
+                lastEntry = entry;
+                lastOutcome = DECODED;
+            }
+        }
+        redeliver(handler);
+    }
+
+    /**
+     * Passes the last decoded telegram to another handler, as long as its
+     * buffer is unchanged.
+     *
+     * @param handler handler to call
+     */
+    public void redeliver(Handler handler) {
+        switch (lastOutcome) {
+            case DECODED:
+                lastEntry.deliver(handler);
+                break;
+            case STATUS:
+                handler.onStatus(statusView);
+                break;
+            case ERROR:
+                handler.onError(statusView);
+                break;
+            default:
+                handler.onMalformed(lastTelegram, lastLength);
+        }
+    }
+
+    /**
+     * Returns the number of telegrams that were no reply or too short.
+     *
+     * @return malformed telegrams
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /**
+     * Returns the number of replies reporting an error.
+     *
+     * @return error replies
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a request sent to the brick. It is completed by the bluetooth
+ * reader thread as soon as the matching reply arrives, or failed if the
+ * request could not be sent, timed out or the connection was lost.
+ * <p/>
+ * Besides blocking with {@linkplain #get()}, a {@link Listener} can be set to
+ * be informed on completion. Listeners run on the thread completing the
+ * future and must return quickly.
+ *
+ * @param <T>
+ *            type of the decoded reply
+ */
+public class ReplyFuture<T> implements Future<T> {
+	private T value;
+	private Throwable failure;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private Listener<T> listener;
+
+	/**
+	 * Listener informed when the future is completed.
+	 *
+	 * @param <T>
+	 *            type of the decoded reply
+	 */
+	public interface Listener<T> {
+		/**
+		 * Called with the decoded reply.
+		 *
+		 * @param value
+		 *            the reply
+		 */
+		void onReply(T value);
+
+		/**
+		 * Called if the request failed, timed out or was cancelled.
+		 *
+		 * @param failure
+		 *            the reason
+		 */
+		void onFailure(Throwable failure);
+	}
+
+	/**
+	 * Sets the listener. If the future is already done, the listener is
+	 * called immediately.
+	 *
+	 * @param listener
+	 *            listener to inform
+	 */
+	public void setListener(Listener<T> listener) {
+		synchronized (this) {
+			if (!done) {
+				this.listener = listener;
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	/**
+	 * Completes the future with the reply.
+	 *
+	 * @param value
+	 *            the decoded reply
+	 * @return false if the future was already done
+	 */
+	public boolean complete(T value) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.value = value;
+			done = true;
+			notifyAll();
+		}
+		notifyListener(listener);
+		return true;
+	}
+
+	/**
+	 * Fails the future.
+	 *
+	 * @param failure
+	 *            the reason
+	 * @return false if the future was already done
+	 */
+	public boolean fail(Throwable failure) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+		notifyListener(listener);
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+			failure = new CancellationException();
+			done = true;
+			notifyAll();
+		}
+		notifyListener(listener);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining = unit.toMillis(timeout);
+		while (!done) {
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return result();
+	}
+
+	private T result() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	private void notifyListener(Listener<T> listener) {
+		if (listener == null) {
+			return;
+		}
+		if (failure != null) {
+			listener.onFailure(failure);
+		} else {
+			listener.onReply(value);
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+/**
+ * Read-only view of a reply telegram in the receive buffer. Views are reused
+ * for every reply by the {@link ReplyDecoder}, nothing is copied, so a view is
+ * only valid during the handler call it is passed to. Values needed later must
+ * be copied out of it.
+ * <p/>
+ * The nested classes give typed access to the replies of the direct and
+ * system commands, this class itself to the header common to all of them.
+ */
+public class ReplyView {
+    private byte[] buffer;
+    private int length;
+
+    void wrap(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Returns the opcode of the command the reply belongs to.
+     *
+     * @return opcode within [0, 255]
+     */
+    public int getOpcode() {
+        return buffer[1] & 0xFF;
+    }
+
+    public byte getStatus() {
+        return buffer[2];
+    }
+
+    public boolean isSuccess() {
+        return buffer[2] == 0;
+    }
+
+    /**
+     * Returns the length of the telegram, without length prefix.
+     *
+     * @return telegram length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a byte of the telegram.
+     *
+     * @param index index within [0, {@linkplain #getLength()})
+     * @return the byte
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + length);
+        }
+        return buffer[index];
+    }
+
+    int getUByte(int offset) {
+        return buffer[offset] & 0xFF;
+    }
+
+    int getUWord(int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    short getSWord(int offset) {
+        return (short) ((buffer[offset] & 0xFF) | (buffer[offset + 1] << 8));
+    }
+
+    int getInt(int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16) | (buffer[offset + 3] << 24);
+    }
+
+    long getULong(int offset) {
+        return getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    // zero terminated ASCII string, allocates
+    String getString(int offset, int maxLength) {
+        int end = offset;
+        while (end < offset + maxLength && buffer[end] != 0) {
+            end++;
+        }
+        char[] chars = new char[end - offset];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buffer[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    void copy(int offset, byte[] destination, int destinationOffset, int count) {
+        System.arraycopy(buffer, offset, destination, destinationOffset, count);
+    }
+
+    /**
+     * Reply to GETINPUTVALUES.
+     */
+    public static class InputValuesView extends ReplyView {
+        public static final int LENGTH = 16;
+
+        public byte getPort() {
+            return (byte) getUByte(3);
+        }
+
+        public boolean isValid() {
+            return getUByte(4) != 0;
+        }
+
+        public boolean isCalibrated() {
+            return getUByte(5) != 0;
+        }
+
+        public byte getSensorType() {
+            return (byte) getUByte(6);
+        }
+
+        public byte getSensorMode() {
+            return (byte) getUByte(7);
+        }
+
+        public int getRawValue() {
+            return getUWord(8);
+        }
+
+        public int getNormalizedValue() {
+            return getUWord(10);
+        }
+
+        public short getScaledValue() {
+            return getSWord(12);
+        }
+
+        public short getCalibratedValue() {
+            return getSWord(14);
+        }
+    }
+
+    /**
+     * Reply to GETOUTPUTSTATE.
+     */
+    public static class OutputStateView extends ReplyView {
+        public static final int LENGTH = 25;
+
+        public byte getPort() {
+            return (byte) getUByte(3);
+        }
+
+        public byte getPower() {
+            return (byte) getUByte(4);
+        }
+
+        public byte getMode() {
+            return (byte) getUByte(5);
+        }
+
+        public byte getRegulationMode() {
+            return (byte) getUByte(6);
+        }
+
+        public byte getTurnRatio() {
+            return (byte) getUByte(7);
+        }
+
+        public byte getRunState() {
+            return (byte) getUByte(8);
+        }
+
+        public long getTachoLimit() {
+            return getULong(9);
+        }
+
+        public int getTachoCount() {
+            return getInt(13);
+        }
+
+        public int getBlockTachoCount() {
+            return getInt(17);
+        }
+
+        public int getRotationCount() {
+            return getInt(21);
+        }
+    }
+
+    /**
+     * Reply to GETBATTERYLEVEL.
+     */
+    public static class BatteryLevelView extends ReplyView {
+        public static final int LENGTH = 5;
+
+        public int getMillivolts() {
+            return getUWord(3);
+        }
+    }
+
+    /**
+     * Reply to KEEPALIVE.
+     */
+    public static class KeepAliveView extends ReplyView {
+        public static final int LENGTH = 7;
+
+        /**
+         * Returns the time the brick stays on without activity.
+         *
+         * @return sleep time limit in milliseconds
+         */
+        public long getSleepTimeLimit() {
+            return getULong(3);
+        }
+    }
+
+    /**
+     * Reply to LSGETSTATUS.
+     */
+    public static class LowSpeedStatusView extends ReplyView {
+        public static final int LENGTH = 4;
+
+        public int getBytesReady() {
+            return getUByte(3);
+        }
+    }
+
+    /**
+     * Reply to LSREAD.
+     */
+    public static class LowSpeedReadView extends ReplyView {
+        public static final int LENGTH = 20;
+        public static final int MAX_DATA = 16;
+
+        public int getBytesRead() {
+            return Math.min(getUByte(3), MAX_DATA);
+        }
+
+        public byte getData(int index) {
+            if (index < 0 || index >= MAX_DATA) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return get(4 + index);
+        }
+
+        /**
+         * Copies all {@linkplain #MAX_DATA} data bytes.
+         *
+         * @param destination array to copy to
+         * @param offset offset within the array
+         */
+        public void copyData(byte[] destination, int offset) {
+            copy(4, destination, offset, MAX_DATA);
+        }
+    }
+
+    /**
+     * Reply to GETCURRENTPROGRAMNAME.
+     */
+    public static class ProgramNameView extends ReplyView {
+        public static final int LENGTH = 23;
+
+        /**
+         * Returns the name of the running program, allocates a string.
+         *
+         * @return file name
+         */
+        public String getProgramName() {
+            return getString(3, 20);
+        }
+    }
+
+    /**
+     * Reply to MESSAGEREAD.
+     */
+    public static class MessageReadView extends ReplyView {
+        public static final int LENGTH = 64;
+        public static final int MAX_MESSAGE = 59;
+
+        public int getInbox() {
+            return getUByte(3);
+        }
+
+        public int getMessageSize() {
+            return Math.min(getUByte(4), MAX_MESSAGE);
+        }
+
+        public byte getData(int index) {
+            if (index < 0 || index >= getMessageSize()) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return get(5 + index);
+        }
+
+        /**
+         * Copies the message.
+         *
+         * @param destination array to copy to, at least {@linkplain #getMessageSize()} bytes
+         * @param offset offset within the array
+         */
+        public void copyData(byte[] destination, int offset) {
+            copy(5, destination, offset, getMessageSize());
+        }
+    }
+
+    /**
+     * Reply to the system command GET FIRMWARE VERSION.
+     */
+    public static class FirmwareVersionView extends ReplyView {
+        public static final int LENGTH = 7;
+
+        public int getProtocolMinor() {
+            return getUByte(3);
+        }
+
+        public int getProtocolMajor() {
+            return getUByte(4);
+        }
+
+        public int getFirmwareMinor() {
+            return getUByte(5);
+        }
+
+        public int getFirmwareMajor() {
+            return getUByte(6);
+        }
+    }
+
+    /**
+     * Reply to the system commands FIND FIRST and FIND NEXT.
+     */
+    public static class FileFindView extends ReplyView {
+        public static final int LENGTH = 28;
+
+        public int getHandle() {
+            return getUByte(3);
+        }
+
+        /**
+         * Returns the name of the file found, allocates a string.
+         *
+         * @return file name
+         */
+        public String getFileName() {
+            return getString(4, 20);
+        }
+
+        public long getFileSize() {
+            return getULong(24);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+/**
+ * Times the requests asking for a reply have been written, per opcode, so
+ * the reader can measure the round trip of every reply, whether somebody
+ * waits for it or not. The brick answers the requests of an opcode in order,
+ * so a reply belongs to the oldest request of its opcode.
+ * <p/>
+ * The writer thread adds the times, the reader thread takes them. A request
+ * not answered within {@linkplain #EXPIRY_MILLIS} is taken as lost, so its
+ * time is not matched with the reply to a later request. Per opcode at most
+ * {@linkplain #DEPTH} requests are kept, the oldest times are dropped to make
+ * room.
+ */
+class RequestTimes {
+	/**
+	 * Returned if no request with the opcode is waiting.
+	 */
+	static final long NONE = Long.MIN_VALUE;
+	/**
+	 * Number of send times kept per opcode.
+	 */
+	static final int DEPTH = 16;
+	/**
+	 * Time after which a request is taken as lost, as long as the reply
+	 * timeout of the requests waited for.
+	 */
+	static final long EXPIRY_MILLIS = 1000;
+	private static final long EXPIRY_NANOS = EXPIRY_MILLIS * 1000000L;
+
+	// created on the first request of an opcode
+	private final long[][] times = new long[256][];
+	private final int[] heads = new int[256];
+	private final int[] counts = new int[256];
+
+	/**
+	 * Adds the send time of a request.
+	 * 
+	 * @param opcode
+	 *            opcode of the request
+	 * @param nanos
+	 *            {@link System#nanoTime()} the request was written at
+	 */
+	synchronized void sent(int opcode, long nanos) {
+		int index = opcode & 0xFF;
+		long[] queue = times[index];
+		if (queue == null) {
+			queue = new long[DEPTH];
+			times[index] = queue;
+		}
+		if (counts[index] == DEPTH) {
+			// the reply of the oldest one did not come
+			heads[index] = (heads[index] + 1) % DEPTH;
+			counts[index]--;
+		}
+		queue[(heads[index] + counts[index]) % DEPTH] = nanos;
+		counts[index]++;
+	}
+
+	/**
+	 * Removes the send time of the oldest request with the opcode, after
+	 * dropping the ones of lost requests.
+	 * 
+	 * @param opcode
+	 *            opcode of the reply
+	 * @param receivedNanos
+	 *            {@link System#nanoTime()} the reply arrived at
+	 * @return the time or {@linkplain #NONE}
+	 */
+	synchronized long replied(int opcode, long receivedNanos) {
+		int index = opcode & 0xFF;
+		while (counts[index] > 0) {
+			long nanos = times[index][heads[index]];
+			heads[index] = (heads[index] + 1) % DEPTH;
+			counts[index]--;
+			if (receivedNanos - nanos <= EXPIRY_NANOS) {
+				return nanos;
+			}
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads length prefixed telegrams from a stream. The stream is buffered and
+ * every telegram is read completely into one reusable buffer, so reading does
+ * not allocate once the buffer has grown to the largest telegram seen.
+ * <p/>
+ * The content of {@linkplain #getBuffer()} is only valid until the next call
+ * of {@linkplain #readTelegram()}.
+ */
+public class TelegramReader {
+	private final DataInputStream in;
+	private byte[] buffer = new byte[TelegramRing.MAX_TELEGRAM_SIZE];
+	private int length;
+
+	public TelegramReader(InputStream in) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+	}
+
+	/**
+	 * Blocks until a complete telegram has been read.
+	 *
+	 * @return length of the telegram, without length prefix
+	 * @throws IOException
+	 *             if the stream fails or ends in the middle of a telegram
+	 */
+	public int readTelegram() throws IOException {
+		length = in.readUnsignedByte();
+		length |= in.readUnsignedByte() << 8;
+		if (length > buffer.length) {
+			buffer = new byte[length];
+		}
+		in.readFully(buffer, 0, length);
+		return length;
+	}
+
+	/**
+	 * Returns the buffer holding the last telegram read.
+	 *
+	 * @return the reused buffer
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the length of the last telegram read.
+	 *
+	 * @return telegram length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
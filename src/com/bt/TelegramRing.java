@@ -0,0 +1,480 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of outbound telegrams. All slots are allocated up front, so
+ * queuing a telegram only copies its bytes. Each slot holds the telegram
+ * already prefixed with its 2 byte length, exactly as it goes over the wire.
+ * <p/>
+ * Producers never block: if the ring is full the telegram is rejected. The
+ * single consumer blocks in {@linkplain #take(byte[], int)} until a telegram
+ * is available or the ring is closed, and can then collect further telegrams
+ * into the same buffer with {@linkplain #poll(byte[], int, long)}.
+ * <p/>
+ * Instead of offering a ready made array, producers can encode a telegram in
+ * place: {@linkplain #claim()} a slot, write the length prefixed telegram into
+ * it and {@linkplain #commit()} it, both while synchronized on the ring.
+ * <p/>
+ * A telegram can be claimed with a key, e.g. the motor port. As long as a
+ * telegram with the same key is still queued, claiming returns that slot
+ * again, so the newer telegram replaces the older one in place.
+ * <p/>
+ * Producers may {@linkplain #hold()} the ring while they queue a group of
+ * telegrams, the consumer will not take anything before the matching
+ * {@linkplain #release()}, so the whole group ends up in one batch.
+ * <p/>
+ * Urgent telegrams, e.g. to brake the motors, go to a small priority lane
+ * with {@linkplain #claimPriority()}. The consumer takes them before any
+ * other telegram, even while the ring is held. Queued telegrams made
+ * obsolete by them can be {@linkplain #discard(int) discarded} by key, or
+ * all at once by the tag they were {@linkplain #claim(int, int) claimed} with.
+ */
+public class TelegramRing {
+	/**
+	 * Maximum size of a telegram without length prefix, as defined by the
+	 * NXT bluetooth protocol.
+	 */
+	public static final int MAX_TELEGRAM_SIZE = 64;
+	/**
+	 * Size of one slot: length prefix plus telegram.
+	 */
+	public static final int SLOT_SIZE = MAX_TELEGRAM_SIZE + 2;
+	/**
+	 * Longest time the consumer waits for a held ring to be released.
+	 */
+	public static final long MAX_HOLD_MILLIS = 100;
+	/**
+	 * Key of telegrams never replaced by newer ones.
+	 */
+	public static final int NO_KEY = -1;
+	/**
+	 * Tag of telegrams not discarded by {@linkplain #discardTagged(int)}.
+	 */
+	public static final int NO_TAG = 0;
+	/**
+	 * Number of supported keys, valid keys are 0 to MAX_KEYS - 1.
+	 */
+	public static final int MAX_KEYS = 8;
+	/**
+	 * Number of telegrams the priority lane can hold.
+	 */
+	public static final int PRIORITY_CAPACITY = 4;
+
+	private final byte[][] slots;
+	private final ByteBuffer[] views;
+	private final int[] lengths;
+	private final int[] keys;
+	private final int[] tags;
+	// slot holding the queued telegram of each key, -1 if none
+	private final int[] keyedSlots = new int[MAX_KEYS];
+	private int claimed;
+	private boolean replacing;
+	private int head = 0;
+	private int tail = 0;
+	private int count = 0;
+	private boolean closed = false;
+	private int holds = 0;
+	private long holdStart;
+	// discarded telegrams still counted, skipped by the consumer
+	private int discarded = 0;
+	private final byte[][] prioritySlots = new byte[PRIORITY_CAPACITY][SLOT_SIZE];
+	private final ByteBuffer[] priorityViews = new ByteBuffer[PRIORITY_CAPACITY];
+	private final int[] priorityLengths = new int[PRIORITY_CAPACITY];
+	private int priorityHead = 0;
+	private int priorityCount = 0;
+	private long priorityTaken = 0;
+	private int highWater = 0;
+
+	/**
+	 * Creates a ring able to hold the given number of telegrams.
+	 *
+	 * @param capacity
+	 *            maximum number of queued telegrams
+	 */
+	public TelegramRing(int capacity) {
+		slots = new byte[capacity][SLOT_SIZE];
+		views = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			views[i] = ByteBuffer.wrap(slots[i]);
+		}
+		lengths = new int[capacity];
+		keys = new int[capacity];
+		tags = new int[capacity];
+		for (int i = 0; i < MAX_KEYS; i++) {
+			keyedSlots[i] = -1;
+		}
+		for (int i = 0; i < PRIORITY_CAPACITY; i++) {
+			priorityViews[i] = ByteBuffer.wrap(prioritySlots[i]);
+		}
+	}
+
+	/**
+	 * Returns the next free slot, cleared, to encode a length prefixed
+	 * telegram into. The caller must hold the lock of the ring until the
+	 * slot is committed.
+	 *
+	 * @return the slot or null if the ring is full or closed
+	 */
+	public synchronized ByteBuffer claim() {
+		return claim(NO_KEY);
+	}
+
+	/**
+	 * Like {@linkplain #claim()}, but returns the slot of the telegram with
+	 * the same key if one is still queued, so it gets replaced.
+	 *
+	 * @param key
+	 *            key of the telegram or {@linkplain #NO_KEY}
+	 * @return the slot or null if the ring is full or closed
+	 */
+	public synchronized ByteBuffer claim(int key) {
+		return claim(key, NO_TAG);
+	}
+
+	/**
+	 * Like {@linkplain #claim(int)}, but tags the telegram so it can be
+	 * discarded together with all others of the same tag.
+	 *
+	 * @param key
+	 *            key of the telegram or {@linkplain #NO_KEY}
+	 * @param tag
+	 *            tag of the telegram or {@linkplain #NO_TAG}
+	 * @return the slot or null if the ring is full or closed
+	 */
+	public synchronized ByteBuffer claim(int key, int tag) {
+		if (closed) {
+			return null;
+		}
+		replacing = key != NO_KEY && keyedSlots[key] >= 0;
+		if (replacing) {
+			claimed = keyedSlots[key];
+		} else if (count == slots.length) {
+			return null;
+		} else {
+			claimed = tail;
+			keys[tail] = key;
+		}
+		tags[claimed] = tag;
+		ByteBuffer slot = views[claimed];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * Queues the telegram encoded into the slot returned by the preceding
+	 * {@linkplain #claim()}. A replaced telegram keeps its position.
+	 */
+	public synchronized void commit() {
+		lengths[claimed] = views[claimed].position();
+		if (replacing) {
+			return;
+		}
+		if (keys[tail] != NO_KEY) {
+			keyedSlots[keys[tail]] = tail;
+		}
+		tail = (tail + 1) % slots.length;
+		count++;
+		raiseHighWater();
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next free slot of the priority lane, cleared. The caller
+	 * must hold the lock of the ring until the slot is committed with
+	 * {@linkplain #commitPriority()}.
+	 *
+	 * @return the slot or null if the lane is full or the ring closed
+	 */
+	public synchronized ByteBuffer claimPriority() {
+		if (closed || priorityCount == PRIORITY_CAPACITY) {
+			return null;
+		}
+		ByteBuffer slot = priorityViews[(priorityHead + priorityCount) % PRIORITY_CAPACITY];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * Queues the telegram encoded into the slot returned by the preceding
+	 * {@linkplain #claimPriority()}.
+	 */
+	public synchronized void commitPriority() {
+		int slot = (priorityHead + priorityCount) % PRIORITY_CAPACITY;
+		priorityLengths[slot] = priorityViews[slot].position();
+		priorityCount++;
+		raiseHighWater();
+		notifyAll();
+	}
+
+	/**
+	 * Removes the queued telegram with the given key, if any.
+	 *
+	 * @param key
+	 *            key of the telegram
+	 * @return true if a telegram has been discarded
+	 */
+	public synchronized boolean discard(int key) {
+		int slot = keyedSlots[key];
+		if (slot < 0) {
+			return false;
+		}
+		// left in place, the consumer skips it
+		lengths[slot] = 0;
+		keys[slot] = NO_KEY;
+		keyedSlots[key] = -1;
+		discarded++;
+		return true;
+	}
+
+	/**
+	 * Removes all queued telegrams with the given tag, keyed or not.
+	 *
+	 * @param tag
+	 *            tag of the telegrams, not {@linkplain #NO_TAG}
+	 * @return number of telegrams discarded
+	 */
+	public synchronized int discardTagged(int tag) {
+		int removed = 0;
+		for (int i = 0, slot = head; i < count; i++, slot = (slot + 1) % slots.length) {
+			if (lengths[slot] == 0 || tags[slot] != tag) {
+				continue;
+			}
+			// left in place, the consumer skips it
+			if (keys[slot] != NO_KEY) {
+				keyedSlots[keys[slot]] = -1;
+				keys[slot] = NO_KEY;
+			}
+			lengths[slot] = 0;
+			tags[slot] = NO_TAG;
+			discarded++;
+			removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Queues a telegram. The length prefix is added by the ring.
+	 *
+	 * @param message
+	 *            the telegram without length prefix
+	 * @return true if queued, false if the ring is full, closed or the
+	 *         telegram is too long
+	 */
+	public synchronized boolean offer(byte[] message) {
+		if (closed || count == slots.length || message.length > MAX_TELEGRAM_SIZE) {
+			return false;
+		}
+		byte[] slot = slots[tail];
+		slot[0] = (byte) message.length;
+		slot[1] = (byte) (message.length >> 8);
+		System.arraycopy(message, 0, slot, 2, message.length);
+		lengths[tail] = message.length + 2;
+		keys[tail] = NO_KEY;
+		tags[tail] = NO_TAG;
+		tail = (tail + 1) % slots.length;
+		count++;
+		raiseHighWater();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes the oldest telegram and copies it, including its length prefix,
+	 * into the given buffer. Blocks while the ring is empty or held.
+	 *
+	 * @param buffer
+	 *            destination
+	 * @param offset
+	 *            position in the buffer, at least {@linkplain #SLOT_SIZE}
+	 *            bytes must be left
+	 * @return number of bytes copied or -1 if the ring has been closed and
+	 *         is drained
+	 */
+	public synchronized int take(byte[] buffer, int offset) {
+		try {
+			while (true) {
+				skipDiscarded();
+				if (priorityCount > 0) {
+					return copyPriority(buffer, offset);
+				}
+				if (count > 0 && !isHeld()) {
+					return copyHead(buffer, offset);
+				}
+				if (closed && count == 0) {
+					return -1;
+				}
+				if (count > 0) {
+					// held, but don't wait longer than allowed
+					wait(Math.max(1, holdStart + MAX_HOLD_MILLIS - System.currentTimeMillis()));
+				} else {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Removes the oldest telegram if one arrives before the deadline and
+	 * fits into the remaining buffer. While the ring is held only urgent
+	 * telegrams are taken, so a group is never split across batches.
+	 *
+	 * @param buffer
+	 *            destination
+	 * @param offset
+	 *            position in the buffer
+	 * @param deadline
+	 *            latest time, in milliseconds, to wait for a telegram
+	 * @return number of bytes copied, 0 if there was none in time or it did
+	 *         not fit
+	 */
+	public synchronized int poll(byte[] buffer, int offset, long deadline) {
+		long remaining = deadline - System.currentTimeMillis();
+		skipDiscarded();
+		while (priorityCount == 0 && (count == 0 || isHeld()) && remaining > 0 && !closed) {
+			try {
+				if (count > 0) {
+					// held, but don't wait longer than allowed
+					wait(Math.max(1, Math.min(remaining,
+							holdStart + MAX_HOLD_MILLIS - System.currentTimeMillis())));
+				} else {
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				return 0;
+			}
+			remaining = deadline - System.currentTimeMillis();
+			skipDiscarded();
+		}
+		if (priorityCount > 0) {
+			if (offset + priorityLengths[priorityHead] > buffer.length) {
+				return 0;
+			}
+			return copyPriority(buffer, offset);
+		}
+		if (count == 0 || isHeld() || offset + lengths[head] > buffer.length) {
+			return 0;
+		}
+		return copyHead(buffer, offset);
+	}
+
+	/**
+	 * Holds the ring: the consumer will not take telegrams until
+	 * {@linkplain #release()} is called, at most for
+	 * {@linkplain #MAX_HOLD_MILLIS}. Holds nest.
+	 */
+	public synchronized void hold() {
+		if (holds++ == 0) {
+			holdStart = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Releases a previous {@linkplain #hold()}.
+	 */
+	public synchronized void release() {
+		if (holds > 0 && --holds == 0) {
+			notifyAll();
+		}
+	}
+
+	private boolean isHeld() {
+		return holds > 0 && count < slots.length && !closed
+				&& System.currentTimeMillis() - holdStart < MAX_HOLD_MILLIS;
+	}
+
+	private void raiseHighWater() {
+		int size = count - discarded + priorityCount;
+		if (size > highWater) {
+			highWater = size;
+		}
+	}
+
+	private void skipDiscarded() {
+		while (discarded > 0 && count > 0 && lengths[head] == 0) {
+			head = (head + 1) % slots.length;
+			count--;
+			discarded--;
+		}
+	}
+
+	private int copyPriority(byte[] buffer, int offset) {
+		int length = priorityLengths[priorityHead];
+		System.arraycopy(prioritySlots[priorityHead], 0, buffer, offset, length);
+		priorityHead = (priorityHead + 1) % PRIORITY_CAPACITY;
+		priorityCount--;
+		priorityTaken++;
+		return length;
+	}
+
+	private int copyHead(byte[] buffer, int offset) {
+		int length = lengths[head];
+		System.arraycopy(slots[head], 0, buffer, offset, length);
+		if (keys[head] != NO_KEY) {
+			keyedSlots[keys[head]] = -1;
+		}
+		head = (head + 1) % slots.length;
+		count--;
+		return length;
+	}
+
+	/**
+	 * Closes the ring. No more telegrams are accepted, already queued ones
+	 * can still be taken.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of queued telegrams.
+	 *
+	 * @return queue depth
+	 */
+	public synchronized int size() {
+		return count - discarded + priorityCount;
+	}
+
+	/**
+	 * Returns the largest number of telegrams queued at once since the last
+	 * call and starts over with the current number.
+	 *
+	 * @return queue depth high water mark
+	 */
+	public synchronized int takeHighWater() {
+		int result = highWater;
+		highWater = count - discarded + priorityCount;
+		return result;
+	}
+
+	/**
+	 * Returns the number of telegrams taken from the priority lane so far.
+	 *
+	 * @return count of urgent telegrams
+	 */
+	public synchronized long getPriorityTaken() {
+		return priorityTaken;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+}
@@ -77,4 +77,61 @@ public interface LegoBrick {
 	 */
 	public void removeSensorListener(LegoBrickSensorListener listener);
 
+	/**
+	 * Adds a listener, receiving the replies of the brick as typed events.
+	 * 
+	 * @param listener
+	 *            listener to add
+	 */
+	public void addEventListener(LegoBrickEventListener listener);
+
+	/**
+	 * Removes given event listener from the brick.
+	 * 
+	 * @param listener
+	 *            listener to remove
+	 */
+	public void removeEventListener(LegoBrickEventListener listener);
+
+	/**
+	 * Adds a listener, receiving only the replies concerning given sensor pin:
+	 * its input values and low speed replies.
+	 * 
+	 * @param pin
+	 *            sensor pin to listen to
+	 * @param listener
+	 *            listener to add
+	 */
+	public void addEventListener(SensorPin pin, LegoBrickEventListener listener);
+
+	/**
+	 * Removes given event listener from a sensor pin.
+	 * 
+	 * @param pin
+	 *            sensor pin the listener was added to
+	 * @param listener
+	 *            listener to remove
+	 */
+	public void removeEventListener(SensorPin pin, LegoBrickEventListener listener);
+
+	/**
+	 * Adds a listener, receiving only the output states of given actor pin.
+	 * 
+	 * @param pin
+	 *            actor pin to listen to
+	 * @param listener
+	 *            listener to add
+	 */
+	public void addEventListener(ActorPin pin, LegoBrickEventListener listener);
+
+	/**
+	 * Removes given event listener from an actor pin.
+	 * 
+	 * @param pin
+	 *            actor pin the listener was added to
+	 * @param listener
+	 *            listener to remove
+	 */
+	public void removeEventListener(ActorPin pin, LegoBrickEventListener listener);
+
 }
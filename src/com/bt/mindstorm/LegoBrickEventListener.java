@@ -0,0 +1,80 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm;
+
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
+import com.bt.mindstorm.nxt.OutputState;
+
+/**
+ * Typed listener interface for everybody who wants to receive the replies and
+ * connection events of a lego brick. Unlike {@link LegoBrickSensorListener}
+ * no message bundle is built, each reply is delivered as an immutable record.
+ * 
+ */
+public interface LegoBrickEventListener {
+	/**
+	 * Handles a GETINPUTVALUES reply.
+	 * 
+	 * @param values
+	 *            the decoded sensor values
+	 */
+	void onInputValues(InputValues values);
+
+	/**
+	 * Handles a GETOUTPUTSTATE reply.
+	 * 
+	 * @param state
+	 *            the decoded motor state
+	 */
+	void onOutputState(OutputState state);
+
+	/**
+	 * Handles a LSGETSTATUS reply.
+	 * 
+	 * @param reply
+	 *            status and number of bytes ready
+	 */
+	void onLowSpeedStatus(LowSpeedReply reply);
+
+	/**
+	 * Handles a LSWRITE reply.
+	 * 
+	 * @param reply
+	 *            status of the write
+	 */
+	void onLowSpeedWrite(LowSpeedReply reply);
+
+	/**
+	 * Handles a LSREAD reply.
+	 * 
+	 * @param reply
+	 *            status and the bytes read
+	 */
+	void onLowSpeedRead(LowSpeedReply reply);
+
+	/**
+	 * Handles a change of the connection, e.g.
+	 * {@linkplain com.bt.BluetoothChannel#STATE_CONNECTED}. A message for the
+	 * user is sent as {@linkplain com.bt.BluetoothChannel#DISPLAY_TOAST}.
+	 * 
+	 * @param state
+	 *            the new state
+	 * @param text
+	 *            message for the user or null
+	 */
+	void onConnectionStateChanged(int state, String text);
+}
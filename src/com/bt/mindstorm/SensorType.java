@@ -28,10 +28,10 @@ import com.bt.mindstorm.robot.sensor.Sensor;
  *
  */
 public enum SensorType {
-	TOUCH_SENSOR("ch.fhnw.edu.mad.mindstorm.robot.sensor.TouchSensor"), 
-	LIGHT_SENSOR("ch.fhnw.edu.mad.mindstorm.robot.sensor.LightSensor"), 
-	ULTRASONIC_SENSOR("ch.fhnw.edu.mad.mindstorm.robot.sensor.UltraSonic"),
-	COLOR_SENSOR("ch.fhnw.edu.mad.mindstorm.robot.sensor.ColorSensor");
+	TOUCH_SENSOR("com.bt.mindstorm.robot.sensor.TouchSensor"), 
+	LIGHT_SENSOR("com.bt.mindstorm.robot.sensor.LightSensor"), 
+	ULTRASONIC_SENSOR("com.bt.mindstorm.robot.sensor.UltraSonic"),
+	COLOR_SENSOR("com.bt.mindstorm.robot.sensor.ColorSensor");
 	
 	private String className;
 	private String TAG = "SensorType";
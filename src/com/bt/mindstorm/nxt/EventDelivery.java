@@ -0,0 +1,182 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings and statistics of the event delivery of a brick. Events are not
+ * delivered on the bluetooth reader thread: every listener has a bounded queue
+ * of its own, which is drained by the executor. So a slow listener can never
+ * stall reading, it only loses events of its own.
+ * <p/>
+ * Per event type the {@link Policy} decides what happens to a new event:
+ * conflated events replace a queued event of the same type and port, queued
+ * events are appended and dropped if the queue of the listener is full.
+ * Connection state changes are never dropped nor conflated, they do not pass
+ * the bounded queue.
+ */
+public class EventDelivery {
+	/**
+	 * Default number of events queued per listener.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+
+	/**
+	 * Types of the events delivered to {@link com.bt.mindstorm.LegoBrickEventListener}s.
+	 */
+	public enum EventType {
+		INPUT_VALUES, OUTPUT_STATE, LOW_SPEED_STATUS, LOW_SPEED_WRITE, LOW_SPEED_READ, CONNECTION_STATE
+	}
+
+	/**
+	 * What to do with an event that is not yet delivered.
+	 */
+	public enum Policy {
+		/**
+		 * Append the event, drop it if the queue of the listener is full.
+		 */
+		QUEUE,
+		/**
+		 * Replace a waiting event of the same type and port, only the latest
+		 * one is of interest.
+		 */
+		CONFLATE
+	}
+
+	private volatile Executor executor;
+	private volatile int queueSize = DEFAULT_QUEUE_SIZE;
+	private final Policy[] policies = new Policy[EventType.values().length];
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+
+	EventDelivery() {
+		// readings are only of interest while they are fresh, replies of the
+		// low speed protocol must all be seen, connection states bypass the queue
+		policies[EventType.INPUT_VALUES.ordinal()] = Policy.CONFLATE;
+		policies[EventType.OUTPUT_STATE.ordinal()] = Policy.CONFLATE;
+		policies[EventType.LOW_SPEED_STATUS.ordinal()] = Policy.QUEUE;
+		policies[EventType.LOW_SPEED_WRITE.ordinal()] = Policy.QUEUE;
+		policies[EventType.LOW_SPEED_READ.ordinal()] = Policy.QUEUE;
+		policies[EventType.CONNECTION_STATE.ordinal()] = Policy.QUEUE;
+	}
+
+	/**
+	 * Returns the executor delivering the events. If none is set, a single
+	 * daemon thread is created on first use.
+	 * 
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		Executor current = executor;
+		if (current == null) {
+			synchronized (this) {
+				if (executor == null) {
+					executor = createDefaultExecutor();
+				}
+				current = executor;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Sets the executor delivering the events. Events of one listener are
+	 * never delivered concurrently, even by a thread pool.
+	 * 
+	 * @param executor
+	 *            the executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the number of events queued per listener. Only applies to
+	 * listeners added afterwards.
+	 * 
+	 * @param queueSize
+	 *            queue size, at least 1
+	 */
+	public void setQueueSize(int queueSize) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("queue size must be at least 1");
+		}
+		this.queueSize = queueSize;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Sets the policy for an event type. Connection state events are always
+	 * delivered, whatever their policy.
+	 * 
+	 * @param type
+	 *            event type
+	 * @param policy
+	 *            the policy
+	 */
+	public void setPolicy(EventType type, Policy policy) {
+		policies[type.ordinal()] = policy;
+	}
+
+	public Policy getPolicy(EventType type) {
+		return policies[type.ordinal()];
+	}
+
+	/**
+	 * Returns the number of events dropped because a listener queue was full.
+	 * 
+	 * @return dropped events
+	 */
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of events replaced by a newer one before delivery.
+	 * 
+	 * @return conflated events
+	 */
+	public long getConflatedEvents() {
+		return conflated.get();
+	}
+
+	void eventDropped() {
+		dropped.incrementAndGet();
+	}
+
+	void eventConflated() {
+		conflated.incrementAndGet();
+	}
+
+	private static ExecutorService createDefaultExecutor() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "NXT events");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
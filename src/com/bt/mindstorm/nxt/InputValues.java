@@ -0,0 +1,158 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import com.bt.ReplyView;
+
+/**
+ * Snapshot of a sensor port as returned by the GETINPUTVALUES direct command.
+ * 
+ */
+public class InputValues {
+	/**
+	 * Length of the GETINPUTVALUES reply.
+	 */
+	public static final int REPLY_LENGTH = 16;
+
+	private final byte status;
+	private final byte port;
+	private final boolean valid;
+	private final boolean calibrated;
+	private final byte sensorType;
+	private final byte sensorMode;
+	private final int rawValue;
+	private final int normalizedValue;
+	private final short scaledValue;
+	private final short calibratedValue;
+	// values are built by the reader thread right after the reply arrived
+	private final long receivedNanos = System.nanoTime();
+
+	/**
+	 * Decodes the reply telegram.
+	 * 
+	 * @param reply
+	 *            the GETINPUTVALUES reply, at least {@linkplain #REPLY_LENGTH}
+	 *            bytes
+	 */
+	public InputValues(byte[] reply) {
+		status = reply[2];
+		port = reply[3];
+		valid = reply[4] != 0;
+		calibrated = reply[5] != 0;
+		sensorType = reply[6];
+		sensorMode = reply[7];
+		rawValue = (reply[8] & 0xFF) | ((reply[9] & 0xFF) << 8);
+		normalizedValue = (reply[10] & 0xFF) | ((reply[11] & 0xFF) << 8);
+		scaledValue = (short) ((reply[12] & 0xFF) | (reply[13] << 8));
+		calibratedValue = (short) ((reply[14] & 0xFF) | (reply[15] << 8));
+	}
+
+	/**
+	 * Copies the values out of a decoded reply.
+	 * 
+	 * @param reply
+	 *            view of the GETINPUTVALUES reply
+	 */
+	public InputValues(ReplyView.InputValuesView reply) {
+		status = reply.getStatus();
+		port = reply.getPort();
+		valid = reply.isValid();
+		calibrated = reply.isCalibrated();
+		sensorType = reply.getSensorType();
+		sensorMode = reply.getSensorMode();
+		rawValue = reply.getRawValue();
+		normalizedValue = reply.getNormalizedValue();
+		scaledValue = reply.getScaledValue();
+		calibratedValue = reply.getCalibratedValue();
+	}
+
+	public byte getStatus() {
+		return status;
+	}
+
+	public byte getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns true if the brick considers the values valid, e.g. they are
+	 * invalid right after the input mode has been changed.
+	 * 
+	 * @return valid flag
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	public byte getSensorType() {
+		return sensorType;
+	}
+
+	public byte getSensorMode() {
+		return sensorMode;
+	}
+
+	/**
+	 * Returns the raw A/D value (UWORD, 0..1023).
+	 * 
+	 * @return raw value
+	 */
+	public int getRawValue() {
+		return rawValue;
+	}
+
+	/**
+	 * Returns the normalized A/D value (UWORD, 0..1023).
+	 * 
+	 * @return normalized value
+	 */
+	public int getNormalizedValue() {
+		return normalizedValue;
+	}
+
+	/**
+	 * Returns the value scaled according to the sensor mode.
+	 * 
+	 * @return scaled value
+	 */
+	public short getScaledValue() {
+		return scaledValue;
+	}
+
+	public short getCalibratedValue() {
+		return calibratedValue;
+	}
+
+	/**
+	 * Returns the time the reply was received.
+	 * 
+	 * @return time as {@linkplain System#nanoTime()}
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "InputValues(port=" + port + ", valid=" + valid + ", type=" + sensorType
+				+ ", mode=" + sensorMode + ", raw=" + rawValue + ", normalized="
+				+ normalizedValue + ", scaled=" + scaledValue + ")";
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.bt.mindstorm.LegoBrickEventListener;
+
+/**
+ * Copy on write registry of event listener queues, indexed by port. Looking up
+ * the listeners of a port neither locks nor allocates, adding and removing
+ * copies the array of that port.
+ * 
+ */
+class ListenerRegistry {
+	private static final QueuedEventListener[] NONE = new QueuedEventListener[0];
+
+	private final AtomicReferenceArray<QueuedEventListener[]> ports;
+
+	ListenerRegistry(int size) {
+		ports = new AtomicReferenceArray<QueuedEventListener[]>(size);
+		for (int i = 0; i < size; i++) {
+			ports.set(i, NONE);
+		}
+	}
+
+	/**
+	 * Returns the listeners of a port. The array must not be modified.
+	 * 
+	 * @param port
+	 *            the port
+	 * @return listeners, empty for an unknown port
+	 */
+	QueuedEventListener[] get(int port) {
+		if (port < 0 || port >= ports.length()) {
+			return NONE;
+		}
+		return ports.get(port);
+	}
+
+	synchronized void add(int port, QueuedEventListener listener) {
+		QueuedEventListener[] old = ports.get(port);
+		QueuedEventListener[] listeners = new QueuedEventListener[old.length + 1];
+		System.arraycopy(old, 0, listeners, 0, old.length);
+		listeners[old.length] = listener;
+		ports.set(port, listeners);
+	}
+
+	/**
+	 * Removes the queue of given listener from a port and discards its
+	 * waiting events.
+	 * 
+	 * @param port
+	 *            the port
+	 * @param listener
+	 *            the listener as added, not its queue
+	 * @return false if the listener was not registered
+	 */
+	synchronized boolean remove(int port, LegoBrickEventListener listener) {
+		QueuedEventListener[] old = ports.get(port);
+		for (int i = 0; i < old.length; i++) {
+			if (old[i].getDelegate() == listener) {
+				old[i].remove();
+				QueuedEventListener[] listeners = new QueuedEventListener[old.length - 1];
+				System.arraycopy(old, 0, listeners, 0, i);
+				System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+				ports.set(port, listeners.length == 0 ? NONE : listeners);
+				return true;
+			}
+		}
+		return false;
+	}
+}
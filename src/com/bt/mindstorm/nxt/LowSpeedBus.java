@@ -0,0 +1,371 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeoutException;
+
+import com.bt.BluetoothChannel;
+import com.bt.BluetoothMessage;
+import com.bt.ReplyFuture;
+
+/**
+ * Low speed (I2C) bus of one sensor port. A transaction transmits up to 16
+ * bytes to the sensor and receives up to 16 bytes back, e.g. a whole register
+ * block at once. Each one takes a LSWRITE, as many LSGETSTATUS as needed until
+ * the answer is ready, and a LSREAD.
+ * <p/>
+ * Sensors polled at a fixed rate can {@linkplain #readAndRequest(byte[], int)
+ * pipeline} their transactions instead: every poll reads the answer to the
+ * previous request and queues the next request right behind the LSREAD, so a
+ * reading takes two requests sent in the same burst, without LSGETSTATUS.
+ * <p/>
+ * Transactions of one port are executed one after the other, as the bus
+ * handles one at a time, while the buses of different ports run concurrently.
+ * The port must be set up as low speed sensor port beforehand, e.g. by
+ * activating a low speed sensor on it.
+ */
+public class LowSpeedBus {
+	/**
+	 * Time a transaction may take, in milliseconds.
+	 */
+	public static final long TRANSACTION_TIMEOUT = 1000;
+
+	private final BluetoothChannel connector;
+	private final byte port;
+	private final LinkedList<Transaction> queue = new LinkedList<Transaction>();
+	// transaction in progress, guarded by this
+	private Transaction current;
+	// bytes the sensor answers the last pipelined request with, 0 if there is
+	// no answer to read, used by the transaction in progress only
+	private volatile int requestedLength = 0;
+
+	private enum Step {
+		WRITE, STATUS, READ
+	}
+
+	// runs on the reader thread, every reply triggers the next request
+	private class Transaction implements ReplyFuture.Listener<LowSpeedReply> {
+		final byte[] data;
+		final int receiveLength;
+		final ReplyFuture<byte[]> future = new ReplyFuture<byte[]>();
+		Step step = Step.WRITE;
+		long deadline;
+
+		Transaction(byte[] data, int receiveLength) {
+			this.data = data;
+			this.receiveLength = receiveLength;
+		}
+
+		void start() {
+			if (future.isDone()) {
+				// cancelled while waiting
+				finish();
+				return;
+			}
+			deadline = System.currentTimeMillis() + TRANSACTION_TIMEOUT;
+			// the write replaces the answer of a pipelined request
+			requestedLength = 0;
+			step = Step.WRITE;
+			connector.setLSWrite(port, data, receiveLength).setListener(this);
+		}
+
+		@Override
+		public void onReply(LowSpeedReply reply) {
+			if (future.isDone()) {
+				// cancelled meanwhile
+				finish();
+				return;
+			}
+			if (step == Step.STATUS && reply.isPending()) {
+				askStatusAgain();
+				return;
+			}
+			if (!reply.isSuccess()) {
+				fail(new IOException("low speed " + step + " on port " + port
+						+ " failed with status 0x" + Integer.toHexString(reply.getStatus() & 0xFF)));
+				return;
+			}
+			switch (step) {
+			case WRITE:
+				if (receiveLength == 0) {
+					future.complete(new byte[0]);
+					finish();
+				} else {
+					step = Step.STATUS;
+					connector.setLSStatus(port).setListener(this);
+				}
+				break;
+			case STATUS:
+				if (reply.getCount() < receiveLength) {
+					askStatusAgain();
+				} else {
+					step = Step.READ;
+					connector.setLSRead(port).setListener(this);
+				}
+				break;
+			case READ:
+				if (reply.getCount() < receiveLength) {
+					fail(new IOException("low speed read on port " + port + " returned "
+							+ reply.getCount() + " of " + receiveLength + " bytes"));
+				} else {
+					byte[] result = new byte[receiveLength];
+					for (int i = 0; i < receiveLength; i++) {
+						result[i] = reply.getData(i);
+					}
+					future.complete(result);
+					finish();
+				}
+				break;
+			}
+		}
+
+		// the sensor is still busy
+		private void askStatusAgain() {
+			if (System.currentTimeMillis() > deadline) {
+				fail(new TimeoutException("low speed transaction on port " + port + " timed out"));
+			} else {
+				connector.setLSStatus(port).setListener(this);
+			}
+		}
+
+		@Override
+		public void onFailure(Throwable failure) {
+			fail(failure);
+		}
+
+		private void fail(Throwable failure) {
+			future.fail(failure);
+			finish();
+		}
+	}
+
+	// reads the answer to the previous request and queues the next request
+	// right behind the read, both replies complete the transaction
+	private class PipelinedTransaction extends Transaction {
+		private int readLength;
+		private int missing;
+		private byte[] answer;
+		private Throwable failure;
+
+		private final ReplyFuture.Listener<LowSpeedReply> writeListener = new ReplyFuture.Listener<LowSpeedReply>() {
+			@Override
+			public void onReply(LowSpeedReply reply) {
+				if (reply.isSuccess()) {
+					requestedLength = receiveLength;
+				} else {
+					failed(statusFailure("write", reply));
+				}
+				replied();
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				failed(failure);
+				replied();
+			}
+		};
+
+		PipelinedTransaction(byte[] data, int receiveLength) {
+			super(data, receiveLength);
+		}
+
+		@Override
+		void start() {
+			if (future.isDone()) {
+				// cancelled while waiting
+				finish();
+				return;
+			}
+			readLength = requestedLength;
+			requestedLength = 0;
+			synchronized (this) {
+				missing = readLength > 0 ? 2 : 1;
+			}
+			if (readLength > 0) {
+				connector.setLSRead(port).setListener(this);
+			}
+			connector.setLSWrite(port, data, receiveLength).setListener(writeListener);
+		}
+
+		// the read of the previous answer
+		@Override
+		public void onReply(LowSpeedReply reply) {
+			if (!reply.isSuccess()) {
+				failed(statusFailure("read", reply));
+			} else if (reply.getCount() < readLength) {
+				failed(new IOException("low speed read on port " + port + " returned "
+						+ reply.getCount() + " of " + readLength + " bytes"));
+			} else {
+				byte[] result = new byte[readLength];
+				for (int i = 0; i < readLength; i++) {
+					result[i] = reply.getData(i);
+				}
+				synchronized (this) {
+					answer = result;
+				}
+			}
+			replied();
+		}
+
+		@Override
+		public void onFailure(Throwable failure) {
+			failed(failure);
+			replied();
+		}
+
+		private synchronized void failed(Throwable cause) {
+			if (failure == null) {
+				failure = cause;
+			}
+		}
+
+		// the replies may come on the reader and the calling thread
+		private void replied() {
+			synchronized (this) {
+				if (--missing > 0) {
+					return;
+				}
+				if (failure != null) {
+					future.fail(failure);
+				} else {
+					future.complete(answer != null ? answer : new byte[0]);
+				}
+			}
+			finish();
+		}
+	}
+
+	private IOException statusFailure(String step, LowSpeedReply reply) {
+		return new IOException("low speed " + step + " on port " + port + " failed with status 0x"
+				+ Integer.toHexString(reply.getStatus() & 0xFF));
+	}
+
+	LowSpeedBus(BluetoothChannel connector, byte port) {
+		this.connector = connector;
+		this.port = port;
+	}
+
+	/**
+	 * Queues a transaction.
+	 * 
+	 * @param data
+	 *            bytes to transmit, starting with the I2C address of the
+	 *            sensor
+	 * @param receiveLength
+	 *            number of bytes to receive, 0 for a write only
+	 * @return future completed with the bytes received
+	 */
+	public ReplyFuture<byte[]> transact(byte[] data, int receiveLength) {
+		if (data.length == 0 || data.length > BluetoothMessage.LS_MAX_DATA || receiveLength < 0
+				|| receiveLength > BluetoothMessage.LS_MAX_DATA) {
+			throw new IllegalArgumentException("1 to " + BluetoothMessage.LS_MAX_DATA
+					+ " bytes to transmit and at most " + BluetoothMessage.LS_MAX_DATA
+					+ " to receive");
+		}
+		return enqueue(new Transaction(data.clone(), receiveLength));
+	}
+
+	/**
+	 * Queues a pipelined transaction: reads the answer to the previous
+	 * pipelined request and transmits the next request right behind the read,
+	 * without waiting for the status. The sensor has the time until the next
+	 * call to prepare its answer. Any other transaction in between discards
+	 * the answer.
+	 * 
+	 * @param data
+	 *            bytes to transmit, starting with the I2C address of the
+	 *            sensor
+	 * @param receiveLength
+	 *            number of bytes the sensor answers the request with
+	 * @return future completed with the answer to the previous request, empty
+	 *         if there was none, or failed if the read or the request failed
+	 */
+	public ReplyFuture<byte[]> readAndRequest(byte[] data, int receiveLength) {
+		if (data.length == 0 || data.length > BluetoothMessage.LS_MAX_DATA || receiveLength < 1
+				|| receiveLength > BluetoothMessage.LS_MAX_DATA) {
+			throw new IllegalArgumentException("1 to " + BluetoothMessage.LS_MAX_DATA
+					+ " bytes to transmit and to receive");
+		}
+		return enqueue(new PipelinedTransaction(data.clone(), receiveLength));
+	}
+
+	private ReplyFuture<byte[]> enqueue(Transaction transaction) {
+		synchronized (this) {
+			if (current != null) {
+				queue.add(transaction);
+				return transaction.future;
+			}
+			current = transaction;
+		}
+		transaction.start();
+		return transaction.future;
+	}
+
+	/**
+	 * Queues a transaction writing to the sensor only.
+	 * 
+	 * @param data
+	 *            bytes to transmit, starting with the I2C address of the
+	 *            sensor
+	 * @return future completed when the bytes are written
+	 */
+	public ReplyFuture<byte[]> write(byte[] data) {
+		return transact(data, 0);
+	}
+
+	/**
+	 * Queues a transaction reading a block of consecutive registers.
+	 * 
+	 * @param address
+	 *            I2C address of the sensor
+	 * @param register
+	 *            first register to read
+	 * @param count
+	 *            number of registers to read
+	 * @return future completed with the register values
+	 */
+	public ReplyFuture<byte[]> readRegisters(int address, int register, int count) {
+		return transact(new byte[] { (byte) address, (byte) register }, count);
+	}
+
+	/**
+	 * Returns the number of transactions waiting, without the one in
+	 * progress.
+	 * 
+	 * @return waiting transactions
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	public byte getPort() {
+		return port;
+	}
+
+	// starts the next transaction, if any
+	private void finish() {
+		Transaction next;
+		synchronized (this) {
+			next = queue.poll();
+			current = next;
+		}
+		if (next != null) {
+			next.start();
+		}
+	}
+}
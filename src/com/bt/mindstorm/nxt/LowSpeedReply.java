@@ -0,0 +1,157 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import com.bt.ReplyView;
+
+/**
+ * Reply to one of the low speed (I2C) direct commands LSGETSTATUS, LSWRITE
+ * and LSREAD.
+ * 
+ */
+public class LowSpeedReply {
+	/**
+	 * Port value if the port of the request is not known.
+	 */
+	public static final int UNKNOWN_PORT = -1;
+	/**
+	 * Maximum number of data bytes of a LSREAD reply.
+	 */
+	public static final int MAX_DATA = 16;
+	/**
+	 * Status of a LSGETSTATUS reply while the transaction is in progress.
+	 */
+	public static final byte PENDING = 0x20;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final int port;
+	private final byte status;
+	private final int count;
+	private final byte[] data;
+	// replies are built by the reader thread right after they arrived
+	private final long receivedNanos = System.nanoTime();
+
+	/**
+	 * Creates a reply without data, e.g. for LSWRITE.
+	 * 
+	 * @param port
+	 *            port of the request or {@linkplain #UNKNOWN_PORT}
+	 * @param status
+	 *            status byte of the reply
+	 * @param count
+	 *            number of bytes ready, 0 if not applicable
+	 */
+	public LowSpeedReply(int port, byte status, int count) {
+		this.port = port;
+		this.status = status;
+		this.count = count;
+		this.data = NO_DATA;
+	}
+
+	/**
+	 * Creates a LSREAD reply.
+	 * 
+	 * @param port
+	 *            port of the request or {@linkplain #UNKNOWN_PORT}
+	 * @param reply
+	 *            the reply telegram, data starting at index 4
+	 */
+	public LowSpeedReply(int port, byte[] reply) {
+		this.port = port;
+		this.status = reply[2];
+		this.count = Math.min(reply[3] & 0xFF, MAX_DATA);
+		this.data = new byte[MAX_DATA];
+		System.arraycopy(reply, 4, data, 0, MAX_DATA);
+	}
+
+	/**
+	 * Copies a decoded LSREAD reply.
+	 * 
+	 * @param port
+	 *            port of the request or {@linkplain #UNKNOWN_PORT}
+	 * @param reply
+	 *            view of the LSREAD reply
+	 */
+	public LowSpeedReply(int port, ReplyView.LowSpeedReadView reply) {
+		this.port = port;
+		this.status = reply.getStatus();
+		this.count = reply.getBytesRead();
+		this.data = new byte[MAX_DATA];
+		reply.copyData(data, 0);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public byte getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the number of bytes ready (LSGETSTATUS) or read (LSREAD).
+	 * 
+	 * @return byte count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns a data byte of a LSREAD reply.
+	 * 
+	 * @param index
+	 *            index within [0, {@linkplain #MAX_DATA})
+	 * @return the byte
+	 */
+	public byte getData(int index) {
+		return data[index];
+	}
+
+	/**
+	 * Returns a copy of the data bytes read.
+	 * 
+	 * @return the first {@linkplain #getCount()} data bytes
+	 */
+	public byte[] getData() {
+		byte[] copy = new byte[Math.min(count, data.length)];
+		System.arraycopy(data, 0, copy, 0, copy.length);
+		return copy;
+	}
+
+	public boolean isSuccess() {
+		return status == 0;
+	}
+
+	/**
+	 * Returns whether the bus was still busy with the transaction.
+	 * 
+	 * @return true if pending
+	 */
+	public boolean isPending() {
+		return status == PENDING;
+	}
+
+	/**
+	 * Returns the time the reply was received.
+	 * 
+	 * @return time as {@linkplain System#nanoTime()}
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+}
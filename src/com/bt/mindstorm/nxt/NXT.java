@@ -15,17 +15,22 @@
  */
 package com.bt.mindstorm.nxt;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.os.Handler;
 import android.os.Message;
 import com.bt.BluetoothChannel;
+import com.bt.BundleEventAdapter;
+import com.bt.ReplyFuture;
 import com.bt.mindstorm.ActorPin;
 import com.bt.mindstorm.LegoBrick;
+import com.bt.mindstorm.LegoBrickEventListener;
 import com.bt.mindstorm.LegoBrickSensorListener;
 import com.bt.mindstorm.SensorPin;
 import com.bt.mindstorm.SensorType;
+import com.bt.mindstorm.robot.SensorPollScheduler;
 import com.bt.mindstorm.robot.motor.Actor;
 import com.bt.mindstorm.robot.sensor.Sensor;
 
@@ -50,17 +55,36 @@ public class NXT implements LegoBrick {
 	public static final int LSREAD = 73;
 	public static final int MOTOR_STATE = 1003;
 	public static final int GET_INPUTSTATE = 1004;
+	/**
+	 * Default time to wait for the reply to a request, in milliseconds.
+	 */
+	public static final long DEFAULT_REPLY_TIMEOUT = 1000;
 
 	private List<LegoBrickSensorListener> listeners;
+	// listeners for all events of the brick
+	private final ListenerRegistry brickListeners = new ListenerRegistry(1);
+	// listeners for the replies of one sensor or actor port, indexed by port
+	private final ListenerRegistry sensorListeners = new ListenerRegistry(
+			NXTSensorPin.values().length);
+	private final ListenerRegistry actorListeners = new ListenerRegistry(
+			NXTActorPin.values().length);
+	private final EventDelivery delivery = new EventDelivery();
+	// delivers the events as message bundles to the sensor listeners
+	private LegoBrickEventListener bundleAdapter;
 	private int delay = 0;
 	private BluetoothChannel connector;
+	private SensorPollScheduler pollScheduler;
+	private final LowSpeedBus[] lowSpeedBuses = new LowSpeedBus[NXTSensorPin.values().length];
+	// latest output state per actor port
+	private final AtomicReferenceArray<OutputState> outputStates = new AtomicReferenceArray<OutputState>(
+			NXTActorPin.values().length);
 	private boolean isSimulation = false;
 
 	/**
 	 * Default constructor.
 	 */
 	public NXT() {
-		listeners = new ArrayList<LegoBrickSensorListener>();
+		listeners = new CopyOnWriteArrayList<LegoBrickSensorListener>();
 		Handler.Callback bluetoothCallback = new Handler.Callback() {
 			/**
 			 * Handles the messages sent by the NXT brick over bluetooth.
@@ -72,7 +96,87 @@ public class NXT implements LegoBrick {
 				return true;
 			}
 		};
-		connector = new BluetoothChannel(bluetoothCallback);
+		bundleAdapter = new BundleEventAdapter(bluetoothCallback);
+		connector = new BluetoothChannel(new EventDispatcher());
+	}
+
+	/**
+	 * Hands the events of the bluetooth channel to the queues of the registered
+	 * event listeners. The reply type selects the registry, the port of the
+	 * reply the listeners within, so only the listeners of that port are
+	 * called. Runs on the reader thread, queuing never blocks.
+	 */
+	private class EventDispatcher implements LegoBrickEventListener {
+		@Override
+		public void onInputValues(InputValues values) {
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onInputValues(values);
+			}
+			QueuedEventListener[] port = sensorListeners.get(values.getPort());
+			for (int i = 0; i < port.length; i++) {
+				port[i].onInputValues(values);
+			}
+		}
+
+		@Override
+		public void onOutputState(OutputState state) {
+			if (state.getPort() >= 0 && state.getPort() < outputStates.length()) {
+				outputStates.set(state.getPort(), state);
+			}
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onOutputState(state);
+			}
+			QueuedEventListener[] port = actorListeners.get(state.getPort());
+			for (int i = 0; i < port.length; i++) {
+				port[i].onOutputState(state);
+			}
+		}
+
+		@Override
+		public void onLowSpeedStatus(LowSpeedReply reply) {
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onLowSpeedStatus(reply);
+			}
+			QueuedEventListener[] port = sensorListeners.get(reply.getPort());
+			for (int i = 0; i < port.length; i++) {
+				port[i].onLowSpeedStatus(reply);
+			}
+		}
+
+		@Override
+		public void onLowSpeedWrite(LowSpeedReply reply) {
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onLowSpeedWrite(reply);
+			}
+			QueuedEventListener[] port = sensorListeners.get(reply.getPort());
+			for (int i = 0; i < port.length; i++) {
+				port[i].onLowSpeedWrite(reply);
+			}
+		}
+
+		@Override
+		public void onLowSpeedRead(LowSpeedReply reply) {
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onLowSpeedRead(reply);
+			}
+			QueuedEventListener[] port = sensorListeners.get(reply.getPort());
+			for (int i = 0; i < port.length; i++) {
+				port[i].onLowSpeedRead(reply);
+			}
+		}
+
+		@Override
+		public void onConnectionStateChanged(int state, String text) {
+			QueuedEventListener[] all = brickListeners.get(0);
+			for (int i = 0; i < all.length; i++) {
+				all[i].onConnectionStateChanged(state, text);
+			}
+		}
 	}
 
 	/**
@@ -127,19 +231,170 @@ public class NXT implements LegoBrick {
 		connector.start();
 	}
 
+	/**
+	 * Connects to an emulated brick instead of a bluetooth device and starts
+	 * the communication.
+	 * 
+	 * @param emulator
+	 *            the brick to talk to, started if it is not running yet
+	 */
+	public void connectAndStart(NXTEmulator emulator) {
+		emulator.start();
+		connector.setStreams(emulator.getInputStream(), emulator.getOutputStream());
+		connector.start();
+	}
+
 	@Override
 	public void setCommunicationDelay(int delay) {
 		this.delay = delay;
 	}
 
 	@Override
-	public void addSensorListener(LegoBrickSensorListener listener) {
+	public synchronized void addSensorListener(LegoBrickSensorListener listener) {
 		listeners.add(listener);
+		// bundles are only built while somebody listens to them
+		if (listeners.size() == 1) {
+			brickListeners.add(0, new QueuedEventListener(bundleAdapter, delivery));
+		}
+	}
+
+	@Override
+	public synchronized void removeSensorListener(LegoBrickSensorListener listener) {
+		if (listeners.remove(listener) && listeners.isEmpty()) {
+			brickListeners.remove(0, bundleAdapter);
+		}
+	}
+
+	@Override
+	public void addEventListener(LegoBrickEventListener listener) {
+		brickListeners.add(0, new QueuedEventListener(listener, delivery));
+	}
+
+	@Override
+	public void removeEventListener(LegoBrickEventListener listener) {
+		brickListeners.remove(0, listener);
+	}
+
+	@Override
+	public void addEventListener(SensorPin pin, LegoBrickEventListener listener) {
+		sensorListeners.add(pin.getPinNr(), new QueuedEventListener(listener, delivery));
 	}
 
 	@Override
-	public void removeSensorListener(LegoBrickSensorListener listener) {
-		listeners.remove(listener);
+	public void removeEventListener(SensorPin pin, LegoBrickEventListener listener) {
+		sensorListeners.remove(pin.getPinNr(), listener);
+	}
+
+	@Override
+	public void addEventListener(ActorPin pin, LegoBrickEventListener listener) {
+		actorListeners.add(pin.getPinNr(), new QueuedEventListener(listener, delivery));
+	}
+
+	@Override
+	public void removeEventListener(ActorPin pin, LegoBrickEventListener listener) {
+		actorListeners.remove(pin.getPinNr(), listener);
+	}
+
+	/**
+	 * Reads the input values of a sensor pin asynchronously.
+	 * 
+	 * @param pin
+	 *            sensor pin to read
+	 * @return future completed with the reply
+	 */
+	public ReplyFuture<InputValues> readInput(SensorPin pin) {
+		return connector.readInput(pin.getPinNr(), DEFAULT_REPLY_TIMEOUT);
+	}
+
+	/**
+	 * Reads the state of a motor asynchronously.
+	 * 
+	 * @param pin
+	 *            actor pin to read
+	 * @return future completed with the reply
+	 */
+	public ReplyFuture<OutputState> getOutputState(ActorPin pin) {
+		return connector.getOutputState(pin.getPinNr(), DEFAULT_REPLY_TIMEOUT);
+	}
+
+	/**
+	 * Returns the settings and statistics of the event delivery, e.g. to set
+	 * the executor the listeners are called on.
+	 * 
+	 * @return the event delivery
+	 */
+	public EventDelivery getEventDelivery() {
+		return delivery;
+	}
+
+	/**
+	 * Sets how many requests may wait for their reply at the same time.
+	 * 
+	 * @param depth
+	 *            pipelining depth
+	 */
+	public void setPipeliningDepth(int depth) {
+		connector.setPipeliningDepth(depth);
+	}
+
+	/**
+	 * Returns the scheduler polling the sensors of this brick, created on
+	 * first use.
+	 * 
+	 * @return the poll scheduler
+	 */
+	public synchronized SensorPollScheduler getSensorPollScheduler() {
+		if (pollScheduler == null) {
+			pollScheduler = new SensorPollScheduler(connector);
+		}
+		return pollScheduler;
+	}
+
+	/**
+	 * Subscribes to the output state of a motor, which is polled at the given
+	 * period until the subscription is cancelled.
+	 * 
+	 * @param pin
+	 *            actor pin of the motor
+	 * @param period
+	 *            poll period in milliseconds
+	 * @param listener
+	 *            listener receiving the states
+	 * @return the active subscription
+	 */
+	public OutputStateSubscription subscribeOutputState(ActorPin pin, long period,
+			OutputStateListener listener) {
+		OutputStateSubscription subscription = new OutputStateSubscription(this, pin, listener,
+				period);
+		subscription.start();
+		return subscription;
+	}
+
+	/**
+	 * Returns the latest output state received for a motor, e.g. by a
+	 * subscription or {@linkplain #getOutputState(ActorPin)}.
+	 * 
+	 * @param pin
+	 *            actor pin of the motor
+	 * @return the latest state or null if none was received yet
+	 */
+	public OutputState getLastOutputState(ActorPin pin) {
+		return outputStates.get(pin.getPinNr());
+	}
+
+	/**
+	 * Returns the low speed (I2C) bus of a sensor pin, created on first use.
+	 * 
+	 * @param pin
+	 *            sensor pin
+	 * @return the bus of the pin
+	 */
+	public synchronized LowSpeedBus getLowSpeedBus(SensorPin pin) {
+		int port = pin.getPinNr();
+		if (lowSpeedBuses[port] == null) {
+			lowSpeedBuses[port] = new LowSpeedBus(connector, pin.getPinNr());
+		}
+		return lowSpeedBuses[port];
 	}
 
 	public BluetoothChannel getBluetoothConnector() {
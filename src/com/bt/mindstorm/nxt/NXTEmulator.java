@@ -0,0 +1,825 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import com.bt.TelegramReader;
+
+/**
+ * Software NXT brick answering direct commands in process, so the whole stack
+ * from the {@link com.bt.BluetoothChannel} up to the robot runs without LEGO
+ * hardware, e.g. for load tests and benchmarks.
+ * <p/>
+ * The emulator speaks the length prefixed telegram protocol over a pair of
+ * streams: the channel writes its commands to {@linkplain #getOutputStream()}
+ * and reads the replies from {@linkplain #getInputStream()}, see
+ * {@linkplain NXT#connectAndStart(NXTEmulator)}. It understands SETOUTPUTSTATE,
+ * GETOUTPUTSTATE, RESETMOTORPOSITION, SETINPUTMODE, GETINPUTVALUES, the low
+ * speed commands for an ultrasonic sensor, KEEPALIVE, GETBATTERYLEVEL, PLAYTONE
+ * and GET FIRMWARE VERSION. Other commands are answered with status 0xBE.
+ * <p/>
+ * Motors turn at a speed proportional to their power, up to
+ * {@linkplain #MAX_DEGREES_PER_SECOND}, and stop at their tacho limit. A turn
+ * ratio slows the higher port of a synchronized pair if positive, the lower
+ * one if negative. Sensor values and ultrasonic distances are set by the test.
+ * <p/>
+ * Like the brick, the emulator executes one command after the other, as soon
+ * as it has arrived. Every reply is sent the {@linkplain #setLatency(int)
+ * latency} after its command arrived, so requests in flight at the same time
+ * overlap their latencies. Each direction of the link is limited to the
+ * {@linkplain #setBandwidth(int) bandwidth}. A real brick answers after about
+ * 15 ms over bluetooth, at some 20000 bytes per second. By default there is
+ * neither latency nor a bandwidth limit.
+ */
+public class NXTEmulator {
+	/**
+	 * Speed of a motor at full power.
+	 */
+	public static final int MAX_DEGREES_PER_SECOND = 1000;
+	/**
+	 * Battery voltage reported unless set otherwise, in millivolts.
+	 */
+	public static final int DEFAULT_BATTERY_LEVEL = 8000;
+	/**
+	 * Time the emulated brick stays on without activity, in milliseconds.
+	 */
+	public static final long SLEEP_TIME_LIMIT = 600000;
+	/**
+	 * Bandwidth value for a link without limit.
+	 */
+	public static final int UNLIMITED = 0;
+
+	// status codes of the replies
+	private static final byte SUCCESS = 0x00;
+	private static final byte PENDING = LowSpeedReply.PENDING;
+	private static final byte BUS_ERROR = (byte) 0xDD;
+	private static final byte NOT_CONFIGURED = (byte) 0xE0;
+	private static final byte UNKNOWN_COMMAND = (byte) 0xBE;
+	private static final byte OUT_OF_RANGE = (byte) 0xC0;
+
+	private static final int MODE_MOTORON = 0x01;
+	private static final int REGULATION_MOTOR_SYNC = 0x02;
+	private static final int RUN_STATE_IDLE = 0x00;
+	private static final int ALL_MOTORS = 0xFF;
+	private static final int SENSOR_TYPE_LOWSPEED = 0x0A;
+	private static final int SENSOR_TYPE_LOWSPEED_9V = 0x0B;
+	private static final int SENSOR_MODE_BOOLEAN = 0x20;
+	private static final int SENSOR_MODE_PCTFULLSCALE = 0x80;
+	private static final int ULTRASONIC_ADDRESS = 0x02;
+	private static final int ULTRASONIC_FIRST_ECHO = 0x42;
+	private static final int ULTRASONIC_ECHOES = 8;
+	// time the sensor takes to answer a low speed transaction
+	private static final long LS_TRANSACTION_NANOS = 2000000L;
+	private static final int PIPE_SIZE = 4096;
+	private static final int MAX_REPLY_LENGTH = 64;
+	// replies waiting for their latency to pass
+	private static final int REPLY_QUEUE_SIZE = 16;
+
+	private final Motor[] motors = new Motor[NXT.NXTActorPin.values().length];
+	private final Input[] inputs = new Input[NXT.NXTSensorPin.values().length];
+	private final Pipe commands = new Pipe(PIPE_SIZE);
+	private final Pipe replies = new Pipe(PIPE_SIZE);
+	private final byte[] reply = new byte[2 + MAX_REPLY_LENGTH];
+	private final ReplyQueue delayed = new ReplyQueue(REPLY_QUEUE_SIZE);
+	private int batteryLevel = DEFAULT_BATTERY_LEVEL;
+	private volatile int latencyMicros = 0;
+	private volatile int bytesPerSecond = UNLIMITED;
+	private volatile long telegramCount;
+	private Thread receiver;
+	private Thread sender;
+
+	private static class Motor {
+		int power;
+		int mode;
+		int regulation;
+		int turnRatio;
+		int runState;
+		long tachoLimit;
+		// degrees, kept as double so slow motors move as well
+		double tachoCount;
+		double blockTachoCount;
+		double rotationCount;
+		long updated = System.nanoTime();
+	}
+
+	private static class Input {
+		int type;
+		int mode;
+		int rawValue = 1023;
+		int scaledValue;
+		boolean scaledSet;
+		final byte[] registers = new byte[256];
+		final byte[] ready = new byte[LowSpeedReply.MAX_DATA];
+		int readyCount;
+		long readyNanos;
+	}
+
+	public NXTEmulator() {
+		for (int i = 0; i < motors.length; i++) {
+			motors[i] = new Motor();
+		}
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new Input();
+			putString(inputs[i].registers, 0x00, "V1.0");
+			putString(inputs[i].registers, 0x08, "LEGO");
+			putString(inputs[i].registers, 0x10, "Sonar");
+			for (int echo = 0; echo < ULTRASONIC_ECHOES; echo++) {
+				inputs[i].registers[ULTRASONIC_FIRST_ECHO + echo] = (byte) 255;
+			}
+		}
+	}
+
+	/**
+	 * Starts the threads executing the commands and sending the replies.
+	 */
+	public synchronized void start() {
+		if (receiver != null) {
+			return;
+		}
+		receiver = new Thread("NXT emulator") {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		sender = new Thread("NXT emulator replies") {
+			@Override
+			public void run() {
+				send();
+			}
+		};
+		receiver.setDaemon(true);
+		sender.setDaemon(true);
+		receiver.start();
+		sender.start();
+	}
+
+	/**
+	 * Closes both streams, the channel sees the connection drop.
+	 */
+	public void close() {
+		commands.close();
+		replies.close();
+	}
+
+	/**
+	 * Returns the stream the replies of the brick are read from.
+	 *
+	 * @return the reply stream
+	 */
+	public InputStream getInputStream() {
+		return replies.input;
+	}
+
+	/**
+	 * Returns the stream the commands to the brick are written to.
+	 *
+	 * @return the command stream
+	 */
+	public OutputStream getOutputStream() {
+		return commands.output;
+	}
+
+	/**
+	 * Sets the time the brick takes for every telegram, including the
+	 * bluetooth turnaround.
+	 *
+	 * @param micros
+	 *            latency in microseconds, 0 for none
+	 */
+	public void setLatency(int micros) {
+		latencyMicros = micros;
+	}
+
+	/**
+	 * Sets the bandwidth commands and replies share.
+	 *
+	 * @param bytesPerSecond
+	 *            bytes per second or {@linkplain #UNLIMITED}
+	 */
+	public void setBandwidth(int bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Returns the number of telegrams received.
+	 *
+	 * @return telegram count
+	 */
+	public long getTelegramCount() {
+		return telegramCount;
+	}
+
+	public synchronized void setBatteryLevel(int millivolts) {
+		batteryLevel = millivolts;
+	}
+
+	/**
+	 * Sets the raw value of a sensor port. The scaled value is derived from it
+	 * according to the sensor mode.
+	 *
+	 * @param port
+	 *            input port
+	 * @param rawValue
+	 *            raw value within [0, 1023]
+	 */
+	public synchronized void setSensorValue(int port, int rawValue) {
+		inputs[port].rawValue = rawValue;
+		inputs[port].scaledSet = false;
+	}
+
+	/**
+	 * Sets raw and scaled value of a sensor port, e.g. the color number of a
+	 * color sensor.
+	 *
+	 * @param port
+	 *            input port
+	 * @param rawValue
+	 *            raw value within [0, 1023]
+	 * @param scaledValue
+	 *            scaled value
+	 */
+	public synchronized void setSensorValue(int port, int rawValue, int scaledValue) {
+		inputs[port].rawValue = rawValue;
+		inputs[port].scaledValue = scaledValue;
+		inputs[port].scaledSet = true;
+	}
+
+	/**
+	 * Sets the echoes measured by an ultrasonic sensor, nearest first.
+	 *
+	 * @param port
+	 *            input port
+	 * @param distances
+	 *            distances in cm, at most 8
+	 */
+	public synchronized void setDistances(int port, int... distances) {
+		byte[] registers = inputs[port].registers;
+		for (int echo = 0; echo < ULTRASONIC_ECHOES; echo++) {
+			registers[ULTRASONIC_FIRST_ECHO + echo] = (byte) (echo < distances.length ? distances[echo]
+					: 255);
+		}
+	}
+
+	public synchronized int getPower(int port) {
+		return motors[port].power;
+	}
+
+	/**
+	 * Returns the position of a motor since the last absolute reset.
+	 *
+	 * @param port
+	 *            output port
+	 * @return rotation count in degrees
+	 */
+	public synchronized int getRotationCount(int port) {
+		update(System.nanoTime());
+		return (int) motors[port].rotationCount;
+	}
+
+	public synchronized int getSensorType(int port) {
+		return inputs[port].type;
+	}
+
+	// executes the commands as they arrive, only thread touching the reply scratch buffer
+	private void receive() {
+		TelegramReader reader = new TelegramReader(commands.input);
+		long linkNanos = System.nanoTime();
+		try {
+			while (true) {
+				int length = reader.readTelegram();
+				telegramCount++;
+				linkNanos = occupyLink(linkNanos, length + 2);
+				int replyLength;
+				synchronized (this) {
+					replyLength = handle(reader.getBuffer(), length);
+				}
+				if (replyLength > 0) {
+					reply[0] = (byte) replyLength;
+					reply[1] = (byte) (replyLength >> 8);
+					delayed.put(reply, replyLength + 2, linkNanos + latencyMicros * 1000L);
+				}
+			}
+		} catch (IOException e) {
+			// the channel closed the connection
+		}
+		delayed.close();
+	}
+
+	// writes the replies once their latency has passed
+	private void send() {
+		byte[] buffer = new byte[2 + MAX_REPLY_LENGTH];
+		long linkNanos = System.nanoTime();
+		try {
+			int length;
+			while ((length = delayed.take(buffer)) > 0) {
+				awaitNanos(delayed.getDue());
+				linkNanos = occupyLink(linkNanos, length);
+				replies.write(buffer, 0, length);
+			}
+		} catch (IOException e) {
+			// the channel closed the connection
+		}
+		replies.close();
+		commands.close();
+	}
+
+	// waits until one direction of the link has carried the bytes, after the
+	// ones before, and returns the time it is busy until
+	private long occupyLink(long busyNanos, int bytes) throws InterruptedIOException {
+		long now = System.nanoTime();
+		if (busyNanos < now) {
+			busyNanos = now;
+		}
+		int bandwidth = bytesPerSecond;
+		if (bandwidth > 0) {
+			busyNanos += bytes * 1000000000L / bandwidth;
+		}
+		awaitNanos(busyNanos);
+		return busyNanos;
+	}
+
+	private static void awaitNanos(long deadline) throws InterruptedIOException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException("emulator interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Executes a command and encodes its reply, if one is requested.
+	 *
+	 * @param telegram
+	 *            the command without length prefix
+	 * @param length
+	 *            length of the command
+	 * @return length of the reply in the scratch buffer, without length
+	 *         prefix, 0 for no reply
+	 */
+	private int handle(byte[] telegram, int length) {
+		if (length < 2) {
+			return 0;
+		}
+		boolean replyRequested = (telegram[0] & 0x80) == 0;
+		boolean systemCommand = (telegram[0] & 0x01) != 0;
+		int opcode = telegram[1] & 0xFF;
+		long now = System.nanoTime();
+		update(now);
+		reply[2] = 0x02;
+		reply[3] = (byte) opcode;
+		reply[4] = SUCCESS;
+		int replyLength = 3;
+		if (systemCommand) {
+			if (opcode == 0x88) {
+				// protocol 1.124, firmware 1.29
+				reply[5] = 124;
+				reply[6] = 1;
+				reply[7] = 29;
+				reply[8] = 1;
+				replyLength = 7;
+			} else {
+				reply[4] = UNKNOWN_COMMAND;
+			}
+			return replyRequested ? replyLength : 0;
+		}
+		int port = (length > 2) ? telegram[2] & 0xFF : 0;
+		switch (opcode) {
+		case 0x03:
+			// PLAYTONE, the emulator stays silent
+			break;
+		case 0x04:
+			if (length < 12 || (port >= motors.length && port != ALL_MOTORS)) {
+				reply[4] = OUT_OF_RANGE;
+			} else if (port == ALL_MOTORS) {
+				for (int i = 0; i < motors.length; i++) {
+					setOutputState(motors[i], telegram);
+				}
+			} else {
+				setOutputState(motors[port], telegram);
+			}
+			break;
+		case 0x05:
+			if (length < 5 || port >= inputs.length) {
+				reply[4] = OUT_OF_RANGE;
+			} else {
+				inputs[port].type = telegram[3] & 0xFF;
+				inputs[port].mode = telegram[4] & 0xFF;
+				inputs[port].readyCount = 0;
+			}
+			break;
+		case 0x06:
+			if (port >= motors.length) {
+				reply[4] = OUT_OF_RANGE;
+				break;
+			}
+			Motor motor = motors[port];
+			reply[5] = (byte) port;
+			reply[6] = (byte) motor.power;
+			reply[7] = (byte) motor.mode;
+			reply[8] = (byte) motor.regulation;
+			reply[9] = (byte) motor.turnRatio;
+			reply[10] = (byte) motor.runState;
+			putInt(11, (int) motor.tachoLimit);
+			putInt(15, (int) motor.tachoCount);
+			putInt(19, (int) motor.blockTachoCount);
+			putInt(23, (int) motor.rotationCount);
+			replyLength = 25;
+			break;
+		case 0x07:
+			if (port >= inputs.length) {
+				reply[4] = OUT_OF_RANGE;
+				break;
+			}
+			Input input = inputs[port];
+			reply[5] = (byte) port;
+			reply[6] = 1;
+			reply[7] = 0;
+			reply[8] = (byte) input.type;
+			reply[9] = (byte) input.mode;
+			putWord(10, input.rawValue);
+			putWord(12, input.rawValue);
+			putWord(14, scaledValue(input));
+			putWord(16, scaledValue(input));
+			replyLength = 16;
+			break;
+		case 0x0A:
+			if (length < 4 || port >= motors.length) {
+				reply[4] = OUT_OF_RANGE;
+			} else if (telegram[3] != 0) {
+				motors[port].blockTachoCount = 0;
+			} else {
+				motors[port].rotationCount = 0;
+			}
+			break;
+		case 0x0B:
+			putWord(5, batteryLevel);
+			replyLength = 5;
+			break;
+		case 0x0D:
+			putInt(5, (int) SLEEP_TIME_LIMIT);
+			replyLength = 7;
+			break;
+		case 0x0E:
+			reply[5] = 0;
+			reply[4] = lowSpeedStatus(port, now);
+			if (reply[4] == SUCCESS) {
+				reply[5] = (byte) inputs[port].readyCount;
+			}
+			replyLength = 4;
+			break;
+		case 0x0F:
+			reply[4] = lowSpeedWrite(port, telegram, length, now);
+			break;
+		case 0x10:
+			reply[4] = lowSpeedStatus(port, now);
+			if (reply[4] == SUCCESS && inputs[port].readyCount == 0) {
+				reply[4] = BUS_ERROR;
+			}
+			for (int i = 0; i < LowSpeedReply.MAX_DATA; i++) {
+				reply[6 + i] = 0;
+			}
+			reply[5] = 0;
+			if (reply[4] == SUCCESS) {
+				Input lowSpeed = inputs[port];
+				reply[5] = (byte) lowSpeed.readyCount;
+				System.arraycopy(lowSpeed.ready, 0, reply, 6, lowSpeed.readyCount);
+				lowSpeed.readyCount = 0;
+			}
+			replyLength = 20;
+			break;
+		default:
+			reply[4] = UNKNOWN_COMMAND;
+			replyLength = 3;
+		}
+		if (!replyRequested) {
+			return 0;
+		}
+		return reply[4] == SUCCESS || opcode == 0x0E || opcode == 0x10 ? replyLength : 3;
+	}
+
+	private void setOutputState(Motor motor, byte[] telegram) {
+		motor.power = telegram[3];
+		motor.mode = telegram[4] & 0xFF;
+		motor.regulation = telegram[5] & 0xFF;
+		motor.turnRatio = telegram[6];
+		motor.runState = telegram[7] & 0xFF;
+		motor.tachoLimit = (telegram[8] & 0xFFL) | (telegram[9] & 0xFFL) << 8
+				| (telegram[10] & 0xFFL) << 16 | (telegram[11] & 0xFFL) << 24;
+		// a new movement is counted from here
+		motor.tachoCount = 0;
+	}
+
+	private short scaledValue(Input input) {
+		if (input.scaledSet) {
+			return (short) input.scaledValue;
+		}
+		switch (input.mode & 0xE0) {
+		case SENSOR_MODE_BOOLEAN:
+			return (short) (input.rawValue < 512 ? 1 : 0);
+		case SENSOR_MODE_PCTFULLSCALE:
+			return (short) ((1023 - input.rawValue) * 100 / 1023);
+		default:
+			return (short) input.rawValue;
+		}
+	}
+
+	// status of the low speed bus of a port, only ultrasonic sensors answer
+	private byte lowSpeedStatus(int port, long now) {
+		if (port >= inputs.length) {
+			return OUT_OF_RANGE;
+		}
+		Input input = inputs[port];
+		if (input.type != SENSOR_TYPE_LOWSPEED && input.type != SENSOR_TYPE_LOWSPEED_9V) {
+			return NOT_CONFIGURED;
+		}
+		return now < input.readyNanos ? PENDING : SUCCESS;
+	}
+
+	private byte lowSpeedWrite(int port, byte[] telegram, int length, long now) {
+		byte status = lowSpeedStatus(port, now);
+		if (status != SUCCESS) {
+			return status;
+		}
+		if (length < 5) {
+			return OUT_OF_RANGE;
+		}
+		int transmit = telegram[3] & 0xFF;
+		int receive = telegram[4] & 0xFF;
+		if (transmit > LowSpeedReply.MAX_DATA || receive > LowSpeedReply.MAX_DATA
+				|| length < 5 + transmit) {
+			return OUT_OF_RANGE;
+		}
+		if (transmit < 2 || (telegram[5] & 0xFF) != ULTRASONIC_ADDRESS) {
+			return BUS_ERROR;
+		}
+		Input input = inputs[port];
+		int register = telegram[6] & 0xFF;
+		for (int i = 2; i < transmit && register + i - 2 < input.registers.length; i++) {
+			// the command register keeps the mode, echoes stay as set by the test
+			if (register + i - 2 < ULTRASONIC_FIRST_ECHO) {
+				input.registers[register + i - 2] = telegram[5 + i];
+			}
+		}
+		for (int i = 0; i < receive; i++) {
+			input.ready[i] = input.registers[(register + i) & 0xFF];
+		}
+		input.readyCount = receive;
+		input.readyNanos = now + LS_TRANSACTION_NANOS;
+		return SUCCESS;
+	}
+
+	// advances all running motors to the given time
+	private void update(long now) {
+		for (int i = 0; i < motors.length; i++) {
+			Motor motor = motors[i];
+			double seconds = (now - motor.updated) / 1e9;
+			motor.updated = now;
+			if ((motor.mode & MODE_MOTORON) == 0 || motor.runState == RUN_STATE_IDLE) {
+				continue;
+			}
+			double degrees = motor.power * syncFactor(i) * MAX_DEGREES_PER_SECOND / 100.0
+					* seconds;
+			if (motor.tachoLimit != 0
+					&& Math.abs(motor.tachoCount + degrees) >= motor.tachoLimit) {
+				// stop exactly at the limit
+				degrees = Math.signum(degrees) * motor.tachoLimit - motor.tachoCount;
+				motor.runState = RUN_STATE_IDLE;
+			}
+			motor.tachoCount += degrees;
+			motor.blockTachoCount += degrees;
+			motor.rotationCount += degrees;
+		}
+	}
+
+	// speed factor of a motor synchronized with another one, 1 if it is
+	// not slowed by the turn ratio
+	private double syncFactor(int port) {
+		Motor motor = motors[port];
+		if (motor.regulation != REGULATION_MOTOR_SYNC || motor.turnRatio == 0) {
+			return 1;
+		}
+		for (int i = 0; i < motors.length; i++) {
+			if (i != port && motors[i].regulation == REGULATION_MOTOR_SYNC
+					&& (motors[i].mode & MODE_MOTORON) != 0) {
+				boolean higher = port > i;
+				if (higher == motor.turnRatio > 0) {
+					// 50 stops the motor, 100 turns it backwards
+					return 1 - Math.abs(motor.turnRatio) / 50.0;
+				}
+				return 1;
+			}
+		}
+		return 1;
+	}
+
+	private void putWord(int offset, int value) {
+		reply[offset] = (byte) value;
+		reply[offset + 1] = (byte) (value >> 8);
+	}
+
+	private void putInt(int offset, int value) {
+		putWord(offset, value);
+		putWord(offset + 2, value >> 16);
+	}
+
+	private static void putString(byte[] registers, int offset, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			registers[offset + i] = (byte) value.charAt(i);
+		}
+	}
+
+	/**
+	 * Replies in the order of their commands, each with the time it is due.
+	 * Copies the replies into preallocated slots, so the emulator does not
+	 * allocate per telegram.
+	 */
+	private static class ReplyQueue {
+		private final byte[][] slots;
+		private final int[] lengths;
+		private final long[] dues;
+		private int head = 0;
+		private int count = 0;
+		private boolean closed = false;
+		// due time of the reply taken last, only used by the sender
+		private long due;
+
+		ReplyQueue(int capacity) {
+			slots = new byte[capacity][2 + MAX_REPLY_LENGTH];
+			lengths = new int[capacity];
+			dues = new long[capacity];
+		}
+
+		synchronized void put(byte[] reply, int length, long due) throws IOException {
+			while (count == slots.length && !closed) {
+				await(this);
+			}
+			if (closed) {
+				throw new IOException("emulator closed");
+			}
+			int tail = (head + count) % slots.length;
+			System.arraycopy(reply, 0, slots[tail], 0, length);
+			lengths[tail] = length;
+			dues[tail] = due;
+			count++;
+			notifyAll();
+		}
+
+		/**
+		 * Blocks until a reply is queued and copies it.
+		 *
+		 * @return length of the reply, -1 once closed and empty
+		 */
+		synchronized int take(byte[] reply) throws IOException {
+			while (count == 0) {
+				if (closed) {
+					return -1;
+				}
+				await(this);
+			}
+			int length = lengths[head];
+			System.arraycopy(slots[head], 0, reply, 0, length);
+			due = dues[head];
+			head = (head + 1) % slots.length;
+			count--;
+			notifyAll();
+			return length;
+		}
+
+		synchronized long getDue() {
+			return due;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private static void await(Object monitor) throws InterruptedIOException {
+		try {
+			monitor.wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("emulator interrupted");
+		}
+	}
+
+	/**
+	 * Bounded byte pipe between the channel and the emulator thread, blocking
+	 * the reader while empty and the writer while full.
+	 */
+	private static class Pipe {
+		private final byte[] buffer;
+		private int head = 0;
+		private int count = 0;
+		private boolean closed = false;
+
+		final InputStream input = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return Pipe.this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return count;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				Pipe.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size) {
+			buffer = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (count == 0) {
+				if (closed) {
+					return -1;
+				}
+				await(this);
+			}
+			int n = Math.min(len, Math.min(count, buffer.length - head));
+			System.arraycopy(buffer, head, b, off, n);
+			head = (head + n) % buffer.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (count == buffer.length && !closed) {
+					await(this);
+				}
+				if (closed) {
+					throw new IOException("pipe closed");
+				}
+				int tail = (head + count) % buffer.length;
+				int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+				System.arraycopy(b, off, buffer, tail, n);
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import com.bt.ReplyView;
+
+/**
+ * Snapshot of a motor port as returned by the GETOUTPUTSTATE direct command.
+ * 
+ */
+public class OutputState {
+	/**
+	 * Length of the GETOUTPUTSTATE reply.
+	 */
+	public static final int REPLY_LENGTH = 25;
+
+	private final byte status;
+	private final byte port;
+	private final byte power;
+	private final byte mode;
+	private final byte regulationMode;
+	private final byte turnRatio;
+	private final byte runState;
+	private final long tachoLimit;
+	private final int tachoCount;
+	private final int blockTachoCount;
+	private final int rotationCount;
+
+	/**
+	 * Decodes the reply telegram.
+	 * 
+	 * @param reply
+	 *            the GETOUTPUTSTATE reply, at least {@linkplain #REPLY_LENGTH}
+	 *            bytes
+	 */
+	public OutputState(byte[] reply) {
+		status = reply[2];
+		port = reply[3];
+		power = reply[4];
+		mode = reply[5];
+		regulationMode = reply[6];
+		turnRatio = reply[7];
+		runState = reply[8];
+		tachoLimit = getInt(reply, 9) & 0xFFFFFFFFL;
+		tachoCount = getInt(reply, 13);
+		blockTachoCount = getInt(reply, 17);
+		rotationCount = getInt(reply, 21);
+	}
+
+	/**
+	 * Copies the state out of a decoded reply.
+	 * 
+	 * @param reply
+	 *            view of the GETOUTPUTSTATE reply
+	 */
+	public OutputState(ReplyView.OutputStateView reply) {
+		status = reply.getStatus();
+		port = reply.getPort();
+		power = reply.getPower();
+		mode = reply.getMode();
+		regulationMode = reply.getRegulationMode();
+		turnRatio = reply.getTurnRatio();
+		runState = reply.getRunState();
+		tachoLimit = reply.getTachoLimit();
+		tachoCount = reply.getTachoCount();
+		blockTachoCount = reply.getBlockTachoCount();
+		rotationCount = reply.getRotationCount();
+	}
+
+	private static int getInt(byte[] reply, int offset) {
+		return (reply[offset] & 0xFF) | ((reply[offset + 1] & 0xFF) << 8)
+				| ((reply[offset + 2] & 0xFF) << 16) | (reply[offset + 3] << 24);
+	}
+
+	public byte getStatus() {
+		return status;
+	}
+
+	public byte getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the power set point within [-100,100].
+	 * 
+	 * @return power
+	 */
+	public byte getPower() {
+		return power;
+	}
+
+	public byte getMode() {
+		return mode;
+	}
+
+	public byte getRegulationMode() {
+		return regulationMode;
+	}
+
+	public byte getTurnRatio() {
+		return turnRatio;
+	}
+
+	public byte getRunState() {
+		return runState;
+	}
+
+	/**
+	 * Returns the tacho limit, 0 means run forever.
+	 * 
+	 * @return tacho limit in degrees
+	 */
+	public long getTachoLimit() {
+		return tachoLimit;
+	}
+
+	/**
+	 * Returns the tacho count since the last reset of the motor counter.
+	 * 
+	 * @return tacho count in degrees
+	 */
+	public int getTachoCount() {
+		return tachoCount;
+	}
+
+	/**
+	 * Returns the tacho count relative to the last programmed movement.
+	 * 
+	 * @return block tacho count in degrees
+	 */
+	public int getBlockTachoCount() {
+		return blockTachoCount;
+	}
+
+	/**
+	 * Returns the tacho count relative to the last reset of the rotation
+	 * sensor.
+	 * 
+	 * @return rotation count in degrees
+	 */
+	public int getRotationCount() {
+		return rotationCount;
+	}
+
+	@Override
+	public String toString() {
+		return "OutputState(port=" + port + ", power=" + power + ", runState=" + runState
+				+ ", tachoCount=" + tachoCount + ", rotationCount=" + rotationCount + ")";
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import com.bt.mindstorm.ActorPin;
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.robot.SensorPollScheduler;
+import com.bt.mindstorm.robot.SensorTask;
+
+/**
+ * Streams the output state of a motor. The state is requested at the given
+ * period within the poll sweep of the brick, every reply is delivered to the
+ * listener, on the event delivery thread.
+ * 
+ */
+public class OutputStateSubscription {
+	private final NXT nxt;
+	private final ActorPin pin;
+	private final OutputStateListener listener;
+	private final EventAdapter adapter = new EventAdapter();
+	private final PollTask task = new PollTask();
+	private boolean active = false;
+
+	// passes the output states on, the other events do not occur for an actor pin
+	private class EventAdapter implements LegoBrickEventListener {
+		@Override
+		public void onOutputState(OutputState state) {
+			listener.onOutputState(state);
+		}
+
+		@Override
+		public void onInputValues(InputValues values) {
+		}
+
+		@Override
+		public void onLowSpeedStatus(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onLowSpeedWrite(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onLowSpeedRead(LowSpeedReply reply) {
+		}
+
+		@Override
+		public void onConnectionStateChanged(int state, String text) {
+		}
+	}
+
+	private class PollTask implements SensorTask {
+		private volatile long period;
+
+		@Override
+		public void run() {
+			nxt.getBluetoothConnector().readMotorState(pin.getPinNr());
+		}
+
+		@Override
+		public long getDelay() {
+			return 0;
+		}
+
+		@Override
+		public long getPeriod() {
+			return period;
+		}
+
+		@Override
+		public void setPeriod(long period) {
+			this.period = period;
+		}
+	}
+
+	OutputStateSubscription(NXT nxt, ActorPin pin, OutputStateListener listener, long period) {
+		this.nxt = nxt;
+		this.pin = pin;
+		this.listener = listener;
+		task.setPeriod(period);
+	}
+
+	synchronized void start() {
+		if (!active) {
+			active = true;
+			nxt.addEventListener(pin, adapter);
+			nxt.getSensorPollScheduler().add(task);
+		}
+	}
+
+	/**
+	 * Stops polling, no further states are delivered.
+	 */
+	public synchronized void cancel() {
+		if (active) {
+			active = false;
+			nxt.getSensorPollScheduler().remove(task);
+			nxt.removeEventListener(pin, adapter);
+		}
+	}
+
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Changes the poll period, it is rounded to a multiple of the base tick of
+	 * the {@link SensorPollScheduler}.
+	 * 
+	 * @param period
+	 *            poll period in milliseconds
+	 */
+	public void setPeriod(long period) {
+		task.setPeriod(period);
+	}
+
+	public long getPeriod() {
+		return task.getPeriod();
+	}
+
+	public ActorPin getPin() {
+		return pin;
+	}
+}
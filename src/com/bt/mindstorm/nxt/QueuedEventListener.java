@@ -0,0 +1,239 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.nxt;
+
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.nxt.EventDelivery.EventType;
+import com.bt.mindstorm.nxt.EventDelivery.Policy;
+
+/**
+ * Queues the events for one listener and delivers them in order on the
+ * executor of the {@link EventDelivery}. Queuing never blocks the caller.
+ * <p/>
+ * Connection state changes bypass the bounded queue and are delivered ahead
+ * of the waiting replies, so a flood of replies can never hide a disconnect.
+ */
+class QueuedEventListener implements LegoBrickEventListener, Runnable {
+	private static final String TAG = "QueuedEventListener";
+
+	private final LegoBrickEventListener delegate;
+	private final EventDelivery delivery;
+	// ring of waiting events, guarded by this
+	private final EventType[] types;
+	private final int[] ports;
+	private final Object[] events;
+	private int head = 0;
+	private int count = 0;
+	// rare and never dropped, so not limited by the queue size
+	private final LinkedList<ConnectionState> connectionStates = new LinkedList<ConnectionState>();
+	private boolean scheduled = false;
+	private boolean removed = false;
+
+	private static class ConnectionState {
+		final int state;
+		final String text;
+
+		ConnectionState(int state, String text) {
+			this.state = state;
+			this.text = text;
+		}
+	}
+
+	QueuedEventListener(LegoBrickEventListener delegate, EventDelivery delivery) {
+		this.delegate = delegate;
+		this.delivery = delivery;
+		int size = delivery.getQueueSize();
+		types = new EventType[size];
+		ports = new int[size];
+		events = new Object[size];
+	}
+
+	LegoBrickEventListener getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Discards the waiting events, no further events are delivered.
+	 */
+	synchronized void remove() {
+		removed = true;
+		for (int i = 0; i < events.length; i++) {
+			events[i] = null;
+		}
+		count = 0;
+		connectionStates.clear();
+	}
+
+	@Override
+	public void onInputValues(InputValues values) {
+		offer(EventType.INPUT_VALUES, values.getPort(), values);
+	}
+
+	@Override
+	public void onOutputState(OutputState state) {
+		offer(EventType.OUTPUT_STATE, state.getPort(), state);
+	}
+
+	@Override
+	public void onLowSpeedStatus(LowSpeedReply reply) {
+		offer(EventType.LOW_SPEED_STATUS, reply.getPort(), reply);
+	}
+
+	@Override
+	public void onLowSpeedWrite(LowSpeedReply reply) {
+		offer(EventType.LOW_SPEED_WRITE, reply.getPort(), reply);
+	}
+
+	@Override
+	public void onLowSpeedRead(LowSpeedReply reply) {
+		offer(EventType.LOW_SPEED_READ, reply.getPort(), reply);
+	}
+
+	@Override
+	public void onConnectionStateChanged(int state, String text) {
+		synchronized (this) {
+			if (removed) {
+				return;
+			}
+			connectionStates.add(new ConnectionState(state, text));
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		schedule();
+	}
+
+	private void offer(EventType type, int port, Object event) {
+		synchronized (this) {
+			if (removed) {
+				return;
+			}
+			if (delivery.getPolicy(type) == Policy.CONFLATE) {
+				for (int i = 0; i < count; i++) {
+					int index = (head + i) % events.length;
+					if (types[index] == type && ports[index] == port) {
+						events[index] = event;
+						delivery.eventConflated();
+						return;
+					}
+				}
+			}
+			if (count == events.length) {
+				delivery.eventDropped();
+				return;
+			}
+			int tail = (head + count) % events.length;
+			types[tail] = type;
+			ports[tail] = port;
+			events[tail] = event;
+			count++;
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		try {
+			delivery.getExecutor().execute(this);
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "event executor rejected delivery", e);
+			synchronized (this) {
+				scheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Delivers the events waiting at the time of the call, reschedules itself
+	 * if more arrive meanwhile so other listeners get their turn.
+	 */
+	@Override
+	public void run() {
+		ConnectionState connection;
+		while ((connection = pollConnectionState()) != null) {
+			try {
+				delegate.onConnectionStateChanged(connection.state, connection.text);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "event listener failed", e);
+			}
+		}
+		int batch;
+		synchronized (this) {
+			batch = count;
+		}
+		for (int i = 0; i < batch; i++) {
+			EventType type;
+			Object event;
+			synchronized (this) {
+				if (removed || count == 0) {
+					break;
+				}
+				type = types[head];
+				event = events[head];
+				events[head] = null;
+				head = (head + 1) % events.length;
+				count--;
+			}
+			try {
+				deliver(type, event);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "event listener failed", e);
+			}
+		}
+		synchronized (this) {
+			if (removed || (count == 0 && connectionStates.isEmpty())) {
+				scheduled = false;
+				return;
+			}
+		}
+		schedule();
+	}
+
+	private synchronized ConnectionState pollConnectionState() {
+		return removed ? null : connectionStates.poll();
+	}
+
+	private void deliver(EventType type, Object event) {
+		switch (type) {
+		case INPUT_VALUES:
+			delegate.onInputValues((InputValues) event);
+			break;
+		case OUTPUT_STATE:
+			delegate.onOutputState((OutputState) event);
+			break;
+		case LOW_SPEED_STATUS:
+			delegate.onLowSpeedStatus((LowSpeedReply) event);
+			break;
+		case LOW_SPEED_WRITE:
+			delegate.onLowSpeedWrite((LowSpeedReply) event);
+			break;
+		case LOW_SPEED_READ:
+			delegate.onLowSpeedRead((LowSpeedReply) event);
+			break;
+		default:
+			// connection states do not pass the queue
+			break;
+		}
+	}
+}
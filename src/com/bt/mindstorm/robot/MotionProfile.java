@@ -0,0 +1,126 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+/**
+ * Ramps a velocity towards its target with limited acceleration. Without a
+ * jerk limit the velocity follows a trapezoidal profile, with a jerk limit the
+ * acceleration itself is ramped, giving an S-curve.
+ * <p/>
+ * Velocities are in the range [-1,1] used by {@linkplain Robot#setVelocity},
+ * accelerations in velocity per second and jerk in acceleration per second.
+ * The profile is not thread safe, it is stepped by the motion task.
+ */
+public class MotionProfile {
+	/**
+	 * Full speed is reached in 250 ms.
+	 */
+	public static final double DEFAULT_ACCELERATION = 4.0;
+
+	private double maxAcceleration;
+	private double maxJerk;
+	private double velocity = 0;
+	private double acceleration = 0;
+
+	/**
+	 * Trapezoidal profile with the default acceleration.
+	 */
+	public MotionProfile() {
+		this(DEFAULT_ACCELERATION, 0);
+	}
+
+	/**
+	 * @param maxAcceleration
+	 *            acceleration limit, velocity per second
+	 * @param maxJerk
+	 *            jerk limit, acceleration per second, 0 for a trapezoidal
+	 *            profile
+	 */
+	public MotionProfile(double maxAcceleration, double maxJerk) {
+		setLimits(maxAcceleration, maxJerk);
+	}
+
+	/**
+	 * Sets the limits.
+	 * 
+	 * @param maxAcceleration
+	 *            acceleration limit, velocity per second
+	 * @param maxJerk
+	 *            jerk limit, acceleration per second, 0 for a trapezoidal
+	 *            profile
+	 */
+	public void setLimits(double maxAcceleration, double maxJerk) {
+		if (maxAcceleration <= 0 || maxJerk < 0) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		this.maxAcceleration = maxAcceleration;
+		this.maxJerk = maxJerk;
+		acceleration = Math.max(-maxAcceleration, Math.min(maxAcceleration, acceleration));
+	}
+
+	/**
+	 * Advances the profile.
+	 * 
+	 * @param target
+	 *            target velocity
+	 * @param millis
+	 *            time since the last step
+	 * @return the velocity to command now
+	 */
+	public double step(double target, long millis) {
+		double error = target - velocity;
+		if (error == 0 && acceleration == 0) {
+			return velocity;
+		}
+		double dt = millis / 1000.0;
+		if (maxJerk == 0) {
+			double limit = maxAcceleration * dt;
+			velocity += Math.max(-limit, Math.min(limit, error));
+			return velocity;
+		}
+		double sign = Math.signum(error);
+		// velocity still gained while the acceleration is ramped down to 0
+		double ramp = acceleration * acceleration / (2 * maxJerk);
+		double desired = (sign * acceleration > 0 && Math.abs(error) <= ramp) ? 0 : sign
+				* maxAcceleration;
+		double limit = maxJerk * dt;
+		acceleration += Math.max(-limit, Math.min(limit, desired - acceleration));
+		double next = velocity + acceleration * dt;
+		if ((target - next) * sign <= 0) {
+			// reached or passed the target
+			velocity = target;
+			acceleration = 0;
+		} else {
+			velocity = next;
+		}
+		return velocity;
+	}
+
+	/**
+	 * Jumps to a velocity, e.g. after an immediate stop.
+	 * 
+	 * @param velocity
+	 *            the velocity
+	 */
+	public void reset(double velocity) {
+		this.velocity = velocity;
+		acceleration = 0;
+	}
+
+	public double getVelocity() {
+		return velocity;
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+import com.bt.mindstorm.ActorPin;
+import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.OutputState;
+import com.bt.mindstorm.nxt.OutputStateListener;
+import com.bt.mindstorm.nxt.OutputStateSubscription;
+
+/**
+ * Dead reckoning of a differential drive. The rotation counts of both wheels
+ * are polled at a fixed period. Once a new count of each wheel has arrived,
+ * both deltas are integrated together into a pose:
+ * position x, y in cm and heading in radians, counter clockwise, 0 along the
+ * x-axis the robot faced when the odometry was reset.
+ * <p/>
+ * The latest pose can be read by any thread without locking, through a
+ * sequence counter around its fields. Updating the pose does not allocate, the
+ * last poses are kept in a bounded history for trajectory analysis.
+ */
+public class Odometry {
+	/**
+	 * Diameter of the standard NXT wheel, in cm.
+	 */
+	public static final double DEFAULT_WHEEL_DIAMETER = 5.6;
+	/**
+	 * Distance between the wheels of the CastorBot, in cm.
+	 */
+	public static final double DEFAULT_TRACK_WIDTH = 11.2;
+	public static final int DEFAULT_HISTORY_SIZE = 256;
+
+	private final NXT nxt;
+	private final ActorPin leftPin;
+	private final ActorPin rightPin;
+	private volatile double wheelDiameter = DEFAULT_WHEEL_DIAMETER;
+	private volatile double trackWidth = DEFAULT_TRACK_WIDTH;
+	// 1 if positive motor speed drives forward, -1 if the motors are mounted reversed
+	private volatile int direction = 1;
+	private OutputStateSubscription leftSubscription;
+	private OutputStateSubscription rightSubscription;
+
+	// latest pose, written under the lock of this. The sequence is odd while the
+	// fields are written, all of them are volatile, so a reader seeing the same
+	// even sequence before and after reading them has read one pose
+	private volatile int sequence = 0;
+	private volatile double x;
+	private volatile double y;
+	private volatile double heading;
+	private volatile long time;
+
+	// rotation counts integrated so far, guarded by this
+	private int leftCount;
+	private int rightCount;
+	private boolean countsKnown = false;
+	// latest counts received, integrated once both wheels have reported
+	private int leftLatest;
+	private int rightLatest;
+	private boolean leftFresh = false;
+	private boolean rightFresh = false;
+
+	// pose history, guarded by this
+	private final double[] historyX;
+	private final double[] historyY;
+	private final double[] historyHeading;
+	private final long[] historyTime;
+	private int historyNext = 0;
+	private int historyCount = 0;
+
+	private final OutputStateListener leftListener = new OutputStateListener() {
+		@Override
+		public void onOutputState(OutputState state) {
+			update(state.getRotationCount(), true);
+		}
+	};
+	private final OutputStateListener rightListener = new OutputStateListener() {
+		@Override
+		public void onOutputState(OutputState state) {
+			update(state.getRotationCount(), false);
+		}
+	};
+
+	public Odometry(NXT nxt, ActorPin leftPin, ActorPin rightPin) {
+		this(nxt, leftPin, rightPin, DEFAULT_HISTORY_SIZE);
+	}
+
+	public Odometry(NXT nxt, ActorPin leftPin, ActorPin rightPin, int historySize) {
+		this.nxt = nxt;
+		this.leftPin = leftPin;
+		this.rightPin = rightPin;
+		historyX = new double[historySize];
+		historyY = new double[historySize];
+		historyHeading = new double[historySize];
+		historyTime = new long[historySize];
+	}
+
+	/**
+	 * Sets the wheel diameter.
+	 * 
+	 * @param centimeters
+	 *            diameter in cm
+	 */
+	public void setWheelDiameter(double centimeters) {
+		wheelDiameter = centimeters;
+	}
+
+	public double getWheelDiameter() {
+		return wheelDiameter;
+	}
+
+	/**
+	 * Sets the distance between the contact points of the wheels.
+	 * 
+	 * @param centimeters
+	 *            track width in cm
+	 */
+	public void setTrackWidth(double centimeters) {
+		trackWidth = centimeters;
+	}
+
+	public double getTrackWidth() {
+		return trackWidth;
+	}
+
+	/**
+	 * Sets whether positive motor speeds drive forward (1) or backward (-1).
+	 * 
+	 * @param direction
+	 *            1 or -1
+	 */
+	public void setDirection(int direction) {
+		this.direction = direction < 0 ? -1 : 1;
+	}
+
+	/**
+	 * Starts polling the rotation counts.
+	 * 
+	 * @param period
+	 *            poll period in milliseconds
+	 */
+	public synchronized void start(long period) {
+		if (leftSubscription != null) {
+			leftSubscription.setPeriod(period);
+			rightSubscription.setPeriod(period);
+			return;
+		}
+		leftSubscription = nxt.subscribeOutputState(leftPin, period, leftListener);
+		rightSubscription = nxt.subscribeOutputState(rightPin, period, rightListener);
+	}
+
+	/**
+	 * Stops polling, the pose is kept.
+	 */
+	public synchronized void stop() {
+		if (leftSubscription != null) {
+			leftSubscription.cancel();
+			rightSubscription.cancel();
+			leftSubscription = null;
+			rightSubscription = null;
+		}
+		// counts may change while stopped, start over from the next ones
+		forgetCounts();
+	}
+
+	/**
+	 * Sets the pose, the next rotation counts are taken as reference.
+	 * 
+	 * @param x
+	 *            x in cm
+	 * @param y
+	 *            y in cm
+	 * @param heading
+	 *            heading in radians
+	 */
+	public synchronized void reset(double x, double y, double heading) {
+		forgetCounts();
+		historyCount = 0;
+		publish(x, y, normalize(heading), System.currentTimeMillis());
+	}
+
+	/**
+	 * Copies the latest pose without locking.
+	 * 
+	 * @param pose
+	 *            array receiving x, y (cm) and heading (radians), at least 3
+	 *            elements
+	 * @return time of the pose, as {@linkplain System#currentTimeMillis()}
+	 */
+	public long getPose(double[] pose) {
+		while (true) {
+			int before = sequence;
+			if ((before & 1) == 0) {
+				pose[0] = x;
+				pose[1] = y;
+				pose[2] = heading;
+				long poseTime = time;
+				if (sequence == before) {
+					return poseTime;
+				}
+			}
+			// an update is in progress
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Copies the pose history, oldest first.
+	 * 
+	 * @param xs
+	 *            receives x in cm
+	 * @param ys
+	 *            receives y in cm
+	 * @param headings
+	 *            receives heading in radians
+	 * @param times
+	 *            receives the time of the pose
+	 * @return number of poses copied, limited by the shortest array
+	 */
+	public synchronized int getHistory(double[] xs, double[] ys, double[] headings, long[] times) {
+		int count = Math.min(historyCount, Math.min(Math.min(xs.length, ys.length),
+				Math.min(headings.length, times.length)));
+		int capacity = historyX.length;
+		int start = (historyNext - count + capacity) % capacity;
+		for (int i = 0; i < count; i++) {
+			int index = (start + i) % capacity;
+			xs[i] = historyX[index];
+			ys[i] = historyY[index];
+			headings[i] = historyHeading[index];
+			times[i] = historyTime[index];
+		}
+		return count;
+	}
+
+	private synchronized void update(int count, boolean left) {
+		if (left) {
+			leftLatest = count;
+			leftFresh = true;
+		} else {
+			rightLatest = count;
+			rightFresh = true;
+		}
+		// a wheel integrated alone would move the robot along the wrong heading
+		if (!leftFresh || !rightFresh) {
+			return;
+		}
+		leftFresh = false;
+		rightFresh = false;
+		int leftDelta = leftLatest - leftCount;
+		int rightDelta = rightLatest - rightCount;
+		leftCount = leftLatest;
+		rightCount = rightLatest;
+		if (!countsKnown) {
+			// first pair, the reference for the following ones
+			countsKnown = true;
+			return;
+		}
+		if (leftDelta == 0 && rightDelta == 0) {
+			return;
+		}
+		// wheel travel in cm, rotation counts are in degrees
+		double perDegree = direction * Math.PI * wheelDiameter / 360.0;
+		double leftDistance = leftDelta * perDegree;
+		double rightDistance = rightDelta * perDegree;
+		double distance = (leftDistance + rightDistance) / 2.0;
+		double turn = (rightDistance - leftDistance) / trackWidth;
+		double midHeading = heading + turn / 2.0;
+		publish(x + distance * Math.cos(midHeading), y + distance * Math.sin(midHeading),
+				normalize(heading + turn), System.currentTimeMillis());
+	}
+
+	// caller holds the lock of this
+	private void forgetCounts() {
+		countsKnown = false;
+		leftFresh = false;
+		rightFresh = false;
+	}
+
+	// caller holds the lock of this
+	private void publish(double newX, double newY, double newHeading, long newTime) {
+		sequence++;
+		x = newX;
+		y = newY;
+		heading = newHeading;
+		time = newTime;
+		sequence++;
+		int capacity = historyX.length;
+		if (capacity > 0) {
+			historyX[historyNext] = newX;
+			historyY[historyNext] = newY;
+			historyHeading[historyNext] = newHeading;
+			historyTime[historyNext] = newTime;
+			historyNext = (historyNext + 1) % capacity;
+			historyCount = Math.min(historyCount + 1, capacity);
+		}
+	}
+
+	private static double normalize(double angle) {
+		while (angle > Math.PI) {
+			angle -= 2 * Math.PI;
+		}
+		while (angle <= -Math.PI) {
+			angle += 2 * Math.PI;
+		}
+		return angle;
+	}
+}
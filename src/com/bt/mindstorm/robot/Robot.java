@@ -18,12 +18,13 @@ package com.bt.mindstorm.robot;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
 
 import android.util.Log;
+import com.bt.LatencyHistogram;
 import com.bt.mindstorm.nxt.NXT;
 import com.bt.mindstorm.robot.sensor.Sensor;
+import com.bt.mindstorm.robot.sensor.SensorDataListener;
 
 /**
  * Class representing a Lego Mindstorm robot and the common functionality. The
@@ -37,13 +38,36 @@ public abstract class Robot {
 
 	protected NXT nxt;
 	protected boolean isSimulation;
-	protected boolean isEmergencyStop;
+	// set by the event thread handling the sensor data
+	protected volatile boolean isEmergencyStop;
+	/**
+	 * Held while motor commands are queued, so a stop or brake can never be
+	 * overtaken by a command of the motion task computed before it.
+	 */
+	protected final Object motorLock = new Object();
 	/**
 	 * Time of last emergency stop cancel
 	 */
 	private long emergencStopCancelTime;
-
-	private ScheduledThreadPoolExecutor executor;
+	// speed of the last velocity vector set
+	private double lastSpeed = 0;
+
+	private ScheduledFuture<?> motionFuture;
+	// hands every new reading to the robot
+	private final SensorDataListener sensorDataListener = new SensorDataListener() {
+		@Override
+		public void onSensorData(Sensor sensor, long receivedNanos) {
+			try {
+				handleSensorData(sensor);
+			} catch (EmergencyStopException e) {
+				if (isEmergencyStop) {
+					return;
+				}
+				Log.d(TAG, "emergency stop: " + e.getMessage());
+				emergencyStop(receivedNanos);
+			}
+		}
+	};
 
 	public Robot(NXT nxt) {
 		this.nxt = nxt;
@@ -56,26 +80,38 @@ public abstract class Robot {
 	 */
 	public void stop() {
 		setVelocity(0, 0);
-		// shutdown all submitted actor and sensor tasks
-		executor.shutdown();
+		// remove the actor and sensor tasks, the scheduler thread is kept for
+		// the next start
+		synchronized (this) {
+			if (motionFuture == null) {
+				return;
+			}
+			motionFuture.cancel(false);
+			motionFuture = null;
+		}
+		SensorPollScheduler scheduler = nxt.getSensorPollScheduler();
+		for (Sensor sensor : getSensors()) {
+			scheduler.remove(sensor.getSensorTask());
+		}
 	}
 
 	/**
 	 * Starts robot.
 	 */
 	public final void start() {
-		executor = new ScheduledThreadPoolExecutor(4);
-		executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
-		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
-		// start actor task at a fixed interval
-		executor.scheduleAtFixedRate(getRobotMotionTask(), getRobotMotionTask()
-				.getDelay(), getRobotMotionTask().getPeriod(),
-				TimeUnit.MILLISECONDS);
+		SensorPollScheduler scheduler = nxt.getSensorPollScheduler();
+		synchronized (this) {
+			if (motionFuture != null) {
+				return;
+			}
+			// start actor task at a fixed interval
+			motionFuture = scheduler.scheduleAtFixedRate(getRobotMotionTask(),
+					getRobotMotionTask().getDelay(), getRobotMotionTask().getPeriod());
+		}
 		for (Sensor sensor : getSensors()) {
-			// start each sensor task at a fixed interval
-			SensorTask sensorTask = sensor.getSensorTask();
-			executor.scheduleAtFixedRate(sensorTask, sensorTask.getDelay(),
-					sensorTask.getPeriod(), TimeUnit.MILLISECONDS);
+			sensor.setSensorDataListener(sensorDataListener);
+			// the sensors are polled in the sweep of the brick
+			scheduler.add(sensor.getSensorTask());
 			sensor.activate();
 		}
 	}
@@ -90,15 +126,28 @@ public abstract class Robot {
 	}
 
 	/**
-	 * Sets emergency stop.
+	 * Sets emergency stop. The motors are braked ahead of all queued commands
+	 * before the robot is stopped.
 	 */
 	public void emergencyStop(boolean stop) {
 		if (stop) {
-			setVelocity(0.01, 0.01);
+			emergencyStop(0);
+		} else {
+			this.isEmergencyStop = false;
+			Log.d(TAG, "emergency is " + isEmergencyStop);
+		}
+	}
+
+	// the brake is timed from the reading arriving at receivedNanos, if not 0
+	private void emergencyStop(long receivedNanos) {
+		synchronized (motorLock) {
+			if (!isSimulation) {
+				nxt.getBluetoothConnector().brake(receivedNanos);
+			}
 			emergencStopCancelTime = new Date().getTime();
 			stop();
 		}
-		this.isEmergencyStop = stop;
+		this.isEmergencyStop = true;
 		Log.d(TAG, "emergency is " + isEmergencyStop);
 	}
 
@@ -118,6 +167,26 @@ public abstract class Robot {
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/**
+	 * Must be called by the derived robots whenever the velocity vector is
+	 * set. If the robot speeds up, adaptive sensors return to their floor
+	 * period, as their readings are about to change.
+	 * 
+	 * @param velX
+	 *            velocity along x-axis in the range [-1,1]
+	 * @param velY
+	 *            velocity along y-axis in the range [-1,1]
+	 */
+	protected void velocityChanged(double velX, double velY) {
+		double speed = Math.sqrt(velX * velX + velY * velY);
+		if (speed > lastSpeed) {
+			for (Sensor sensor : getSensors()) {
+				sensor.pollFaster();
+			}
+		}
+		lastSpeed = speed;
+	}
+
 	/**
 	 * Returns list of attached sensors.
 	 * 
@@ -138,13 +207,25 @@ public abstract class Robot {
 	}
 
 	/**
-	 * Handle the sensor data in the specific robot.
+	 * Handle the sensor data in the specific robot. Called on the event thread
+	 * for every new reading of the sensors of a started robot, an
+	 * {@link EmergencyStopException} stops the robot at once.
 	 * 
 	 * @param sensor
 	 *            The sensor and its data.
 	 */
 	public void handleSensorData(Sensor sensor) throws EmergencyStopException {
-		throw new UnsupportedOperationException("not implemented");
+		// no reaction by default
+	}
+
+	/**
+	 * Returns the latencies from the reading raising an emergency stop to the
+	 * brake telegrams being written.
+	 * 
+	 * @return the histogram
+	 */
+	public LatencyHistogram getStopLatency() {
+		return nxt.getBluetoothConnector().getStopLatency();
 	}
 
 	/**
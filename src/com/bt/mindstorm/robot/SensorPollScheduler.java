@@ -0,0 +1,176 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import com.bt.BluetoothChannel;
+
+/**
+ * Polls all sensors of a brick in one sweep per base tick. The sweep runs the
+ * due sensor tasks back to back within one batch, so their requests leave in
+ * a single write, always in the same order.
+ * <p/>
+ * The period of a sensor task is rounded to a multiple of the base tick, a
+ * task with period 0 is polled every tick. The period is read at every sweep,
+ * so it may change while the task is scheduled.
+ * <p/>
+ * The scheduler has one thread, which lives as long as the brick and is reused
+ * by every robot started on it. The robot motion task runs on it as well, so
+ * motor commands never interleave with a sweep.
+ */
+public class SensorPollScheduler {
+	private static final String TAG = "SensorPollScheduler";
+	/**
+	 * Default base tick, in milliseconds.
+	 */
+	public static final long DEFAULT_BASE_TICK = 50;
+
+	private final BluetoothChannel connector;
+	private final ScheduledThreadPoolExecutor executor;
+	private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<Slot>();
+	private final Runnable sweep = new Runnable() {
+		@Override
+		public void run() {
+			sweep();
+		}
+	};
+	private volatile long baseTick = DEFAULT_BASE_TICK;
+	private ScheduledFuture<?> sweepFuture;
+	// number of sweeps so far, only advanced by the scheduler thread
+	private volatile long tick = 0;
+
+	// a scheduled sensor task and the first tick it is due
+	private static class Slot {
+		final SensorTask task;
+		final long firstTick;
+
+		Slot(SensorTask task, long firstTick) {
+			this.task = task;
+			this.firstTick = firstTick;
+		}
+	}
+
+	public SensorPollScheduler(BluetoothChannel connector) {
+		this.connector = connector;
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "NXT poll");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the base tick, takes effect when the sweep is started the next
+	 * time.
+	 * 
+	 * @param millis
+	 *            base tick in milliseconds
+	 */
+	public void setBaseTick(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("base tick must be positive");
+		}
+		baseTick = millis;
+	}
+
+	public long getBaseTick() {
+		return baseTick;
+	}
+
+	/**
+	 * Adds a sensor task to the sweep, the sweep is started with the first
+	 * one. The delay of the task is rounded up to whole ticks.
+	 * 
+	 * @param task
+	 *            sensor task to poll
+	 */
+	public synchronized void add(SensorTask task) {
+		long delayTicks = (task.getDelay() + baseTick - 1) / baseTick;
+		slots.add(new Slot(task, tick + delayTicks));
+		if (sweepFuture == null) {
+			sweepFuture = executor.scheduleAtFixedRate(sweep, baseTick, baseTick,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Removes a sensor task from the sweep, the sweep is stopped with the last
+	 * one.
+	 * 
+	 * @param task
+	 *            sensor task to remove
+	 */
+	public synchronized void remove(SensorTask task) {
+		for (Slot slot : slots) {
+			if (slot.task == task) {
+				slots.remove(slot);
+				break;
+			}
+		}
+		if (slots.isEmpty() && sweepFuture != null) {
+			sweepFuture.cancel(false);
+			sweepFuture = null;
+		}
+	}
+
+	/**
+	 * Runs a task at a fixed rate on the scheduler thread.
+	 * 
+	 * @param task
+	 *            task to run
+	 * @param delay
+	 *            delay of the first run, in milliseconds
+	 * @param period
+	 *            period, in milliseconds
+	 * @return future to cancel the task with
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long delay, long period) {
+		return executor.scheduleAtFixedRate(task, delay, period, TimeUnit.MILLISECONDS);
+	}
+
+	private void sweep() {
+		long now = tick++;
+		long ticks = baseTick;
+		connector.beginBatch();
+		try {
+			for (Slot slot : slots) {
+				if (now < slot.firstTick) {
+					continue;
+				}
+				long divisor = (slot.task.getPeriod() + ticks / 2) / ticks;
+				if (divisor <= 1 || (now - slot.firstTick) % divisor == 0) {
+					try {
+						slot.task.run();
+					} catch (RuntimeException e) {
+						// a failing sensor must not cancel the sweep
+						Log.e(TAG, "sensor task failed", e);
+					}
+				}
+			}
+		} finally {
+			connector.endBatch();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Target speeds of the left and right wheel, handed from the threads setting
+ * the velocity to the motion task without locking. Both speeds are packed as
+ * floats into one long, so a reader always sees a pair written together.
+ */
+public class VelocitySetpoint {
+	private final AtomicLong packed = new AtomicLong(pack(0, 0));
+
+	/**
+	 * Publishes a new pair of wheel speeds.
+	 * 
+	 * @param left
+	 *            speed of the left wheel
+	 * @param right
+	 *            speed of the right wheel
+	 */
+	public void set(double left, double right) {
+		packed.set(pack(left, right));
+	}
+
+	/**
+	 * Returns the latest pair, to be unpacked with {@linkplain #left(long)}
+	 * and {@linkplain #right(long)}.
+	 * 
+	 * @return both speeds packed into one value
+	 */
+	public long get() {
+		return packed.get();
+	}
+
+	public static double left(long pair) {
+		return Float.intBitsToFloat((int) (pair >>> 32));
+	}
+
+	public static double right(long pair) {
+		return Float.intBitsToFloat((int) pair);
+	}
+
+	private static long pack(double left, double right) {
+		return ((long) Float.floatToIntBits((float) left) << 32)
+				| (Float.floatToIntBits((float) right) & 0xFFFFFFFFL);
+	}
+
+	@Override
+	public String toString() {
+		long pair = get();
+		return "v(left)=" + left(pair) + "; v(right)=" + right(pair);
+	}
+}
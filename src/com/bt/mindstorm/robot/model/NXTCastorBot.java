@@ -15,10 +15,16 @@
  */
 package com.bt.mindstorm.robot.model;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bt.BluetoothChannel;
 import com.bt.mindstorm.nxt.NXT;
 import com.bt.mindstorm.nxt.NXT.NXTActorPin;
+import com.bt.mindstorm.robot.MotionProfile;
+import com.bt.mindstorm.robot.Odometry;
 import com.bt.mindstorm.robot.Robot;
 import com.bt.mindstorm.robot.RobotMotionTask;
+import com.bt.mindstorm.robot.VelocitySetpoint;
 import com.bt.mindstorm.robot.motor.Actor;
 
 /**
@@ -33,14 +39,30 @@ import com.bt.mindstorm.robot.motor.Actor;
 public class NXTCastorBot extends Robot {
 	@SuppressWarnings("unused")
 	private static final String TAG = "NXTCastorBot";
+	/**
+	 * Default period of the motion task in milliseconds.
+	 */
+	public static final long MOTION_PERIOD = 50;
+	/**
+	 * Power of both motors while turning on the spot.
+	 */
+	public static final int TURN_POWER = 60;
 	private int DIR = -1;
 
 	private Actor motorB;
 	private Actor motorC;
 	
 	private RobotMotionTask actorTask = null;
+	private Odometry odometry = null;
 	
-	private Velocity velocity = new Velocity();
+	// written by the threads setting the velocity, read by the motion task
+	private final VelocitySetpoint setpoint = new VelocitySetpoint();
+	// set when the motors were stopped without ramp
+	private final AtomicBoolean halted = new AtomicBoolean(false);
+	private volatile double maxAcceleration = MotionProfile.DEFAULT_ACCELERATION;
+	private volatile double maxJerk = 0;
+	private volatile long motionPeriod = MOTION_PERIOD;
+	private volatile boolean synchronizedDrive = false;
 
 
 	/**
@@ -64,13 +86,57 @@ public class NXTCastorBot extends Robot {
 
 	@Override
 	public void stop() {
-		if (!isSimulation) {
-			motorB.setSpeed(0);
-			motorC.setSpeed(0);
+		synchronized (motorLock) {
+			// halt the ramps first, so the motion task does not restart the motors
+			haltProfiles();
+			if (!isSimulation) {
+				// stop immediately, without ramp
+				motorB.setSpeed(0);
+				motorC.setSpeed(0);
+			}
 		}
 		super.stop();
 	}
 
+	/**
+	 * Turns on the spot, both wheels are synchronized by the brick and stop
+	 * after the number of degrees needed for the turn. The robot must not be
+	 * moving.
+	 * 
+	 * @param degree
+	 *            degree to turn within range [-90, 90], positive turns counter
+	 *            clockwise
+	 */
+	@Override
+	public void turn(int degree) {
+		if (degree < -90 || degree > 90) {
+			throw new IllegalArgumentException("degree must be within the range [-90,90]");
+		}
+		if (isSimulation || isEmergencyStop || degree == 0) {
+			return;
+		}
+		Odometry geometry = getOdometry();
+		// each wheel travels degree/360 of the circle with the track as diameter
+		int wheelDegrees = (int) Math.round(Math.abs(degree) * geometry.getTrackWidth()
+				/ geometry.getWheelDiameter());
+		// turn ratio 100 runs motor B forward and C backwards, counter
+		// clockwise needs the left wheel B backwards
+		int power = (degree > 0 ? -getDirection() : getDirection()) * TURN_POWER;
+		synchronized (motorLock) {
+			// the motion task must not interfere with the turn
+			haltProfiles();
+			nxt.getBluetoothConnector().rotateSync(NXTActorPin.PIN_B.getPinNr(),
+					NXTActorPin.PIN_C.getPinNr(), power, 100, wheelDegrees);
+		}
+	}
+
+	// sets the target speed to 0 at once, the motors must have been stopped,
+	// caller holds the motor lock
+	private void haltProfiles() {
+		setpoint.set(0, 0);
+		halted.set(true);
+	}
+
 	@Override
 	public void setVelocity(double vx, double vy) {
 		if (isEmergencyStop)
@@ -95,16 +161,72 @@ public class NXTCastorBot extends Robot {
 		vr = (Math.abs(vr) >= 1.0) ? signRight * 1.0 : vr;
 
 		// make data ready to be read by the MotionTask
-		synchronized (velocity) {
-			velocity.left = vl;
-			velocity.right = vr;
-		}
+		setpoint.set(vl, vr);
+		velocityChanged(vx, vy);
 	}
 
 	protected int getDirection() {
 		return DIR;
 	}
 
+	/**
+	 * Sets the limits of the ramps between velocities, see
+	 * {@link MotionProfile}.
+	 * 
+	 * @param maxAcceleration
+	 *            acceleration limit, velocity per second
+	 * @param maxJerk
+	 *            jerk limit, acceleration per second, 0 for trapezoidal ramps
+	 */
+	public void setAccelerationLimits(double maxAcceleration, double maxJerk) {
+		if (maxAcceleration <= 0 || maxJerk < 0) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		// picked up by the motion task on its next run
+		this.maxAcceleration = maxAcceleration;
+		this.maxJerk = maxJerk;
+	}
+
+	/**
+	 * Lets the brick keep both wheels synchronized. Instead of a speed per
+	 * motor, one power and turn ratio is sent to both motors whenever one of
+	 * the wheel speeds changes.
+	 * 
+	 * @param enabled
+	 *            true to use the speed synchronization of the brick
+	 */
+	public void setSynchronizedDrive(boolean enabled) {
+		synchronizedDrive = enabled;
+	}
+
+	public boolean isSynchronizedDrive() {
+		return synchronizedDrive;
+	}
+
+	/**
+	 * Sets the period of the motion task, takes effect on the next start.
+	 * 
+	 * @param period
+	 *            period in milliseconds
+	 */
+	public void setMotionPeriod(long period) {
+		motionPeriod = period;
+	}
+
+	/**
+	 * Returns the odometry of the two wheels, it has to be started to track
+	 * the pose.
+	 * 
+	 * @return the odometry, null in simulation
+	 */
+	public synchronized Odometry getOdometry() {
+		if (odometry == null && !isSimulation) {
+			odometry = new Odometry(nxt, NXTActorPin.PIN_B, NXTActorPin.PIN_C);
+			odometry.setDirection(getDirection());
+		}
+		return odometry;
+	}
+
 	@Override
 	public void reset() {
 		stop();
@@ -125,19 +247,88 @@ public class NXTCastorBot extends Robot {
 	private class NXTCastorBotMotionTask implements RobotMotionTask {
 		// time values are in milliseconds
 		private static final long DELAY = 0; 
-		private static final long PERIOD = 400; 
+		private long period = motionPeriod;
+		// state of the ramps, only used by the thread running the task
+		private final MotionProfile leftProfile = new MotionProfile();
+		private final MotionProfile rightProfile = new MotionProfile();
+		private double appliedAcceleration = MotionProfile.DEFAULT_ACCELERATION;
+		private double appliedJerk = 0;
+		// power last queued for the motors
+		private int leftPower;
+		private int rightPower;
 
 		@Override
 		public void run() {
-			// set the calculated speed
-			if (!isSimulation) {
-				synchronized (velocity) {
-					motorB.setSpeed((int) (velocity.left * Actor.SPEED_LIMIT));
-					motorC.setSpeed((int) (velocity.right * Actor.SPEED_LIMIT));
+			// ramp towards the target speed, the motors are only written when
+			// their power changes, both in one write
+			if (isSimulation) {
+				return;
+			}
+			if (halted.getAndSet(false)) {
+				// the motors have been stopped without ramp, the next power is
+				// written whatever it is, the channel suppresses a repeated stop
+				leftProfile.reset(0);
+				rightProfile.reset(0);
+				leftPower = Integer.MIN_VALUE;
+				rightPower = Integer.MIN_VALUE;
+			}
+			if (maxAcceleration != appliedAcceleration || maxJerk != appliedJerk) {
+				appliedAcceleration = maxAcceleration;
+				appliedJerk = maxJerk;
+				leftProfile.setLimits(appliedAcceleration, appliedJerk);
+				rightProfile.setLimits(appliedAcceleration, appliedJerk);
+			}
+			long target = setpoint.get();
+			int left = (int) (leftProfile.step(VelocitySetpoint.left(target), period) * Actor.SPEED_LIMIT);
+			int right = (int) (rightProfile.step(VelocitySetpoint.right(target), period) * Actor.SPEED_LIMIT);
+			if (left == leftPower && right == rightPower) {
+				return;
+			}
+			BluetoothChannel connector = nxt.getBluetoothConnector();
+			synchronized (motorLock) {
+				if (halted.get() || isEmergencyStop) {
+					// stopped while the ramps were stepped, the next run starts over
+					return;
+				}
+				connector.beginBatch();
+				try {
+					// a dropped telegram is sent again on the next run
+					if (synchronizedDrive) {
+						if (driveSynchronized(connector, left, right)) {
+							leftPower = left;
+							rightPower = right;
+						}
+					} else {
+						if (left != leftPower && motorB.setSpeed(left)) {
+							leftPower = left;
+						}
+						if (right != rightPower && motorC.setSpeed(right)) {
+							rightPower = right;
+						}
+					}
+				} finally {
+					connector.endBatch();
 				}
 			}
 		}
 
+		// one power and turn ratio for both wheels, the faster wheel gets the
+		// power and the turn ratio slows the other one
+		private boolean driveSynchronized(BluetoothChannel connector, int left, int right) {
+			int power = Math.abs(left) >= Math.abs(right) ? left : right;
+			int ratio = 0;
+			if (power != 0) {
+				int slower = power == left ? right : left;
+				ratio = (int) Math.round(50.0 * (1.0 - (double) slower / power));
+				if (power != left) {
+					// the left wheel B is on the lower port
+					ratio = -ratio;
+				}
+			}
+			return connector.changeSyncSpeed(NXTActorPin.PIN_B.getPinNr(),
+					NXTActorPin.PIN_C.getPinNr(), power, ratio);
+		}
+
 		@Override
 		public long getDelay() {
 			return DELAY;
@@ -145,17 +336,9 @@ public class NXTCastorBot extends Robot {
 
 		@Override
 		public long getPeriod() {
-			return PERIOD;
-		}
-	}
-
-	private class Velocity {
-		double left;
-		double right;
-		
-		@Override
-		public String toString() {
-			return "v(left)="+ left + "; v(right)=" + right;
+			// read once per start, the profile steps with the same period
+			period = motionPeriod;
+			return period;
 		}
 	}
 }
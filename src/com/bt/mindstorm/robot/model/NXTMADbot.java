@@ -34,6 +34,8 @@ import com.bt.mindstorm.robot.sensor.TouchSensor;
  */
 public class NXTMADbot extends NXTCastorBot {
 	private static int SENSOR_POLL_RATE = 100;
+	// longest poll period of the touch sensor while nothing changes
+	private static int SENSOR_POLL_CEILING = 500;
 	List<Sensor> sensors = new ArrayList<Sensor>();
 
 	public NXTMADbot(NXT nxt) {
@@ -48,13 +50,15 @@ public class NXTMADbot extends NXTCastorBot {
 	}
 
 	private void createSensors() {
-		createAndAddSensorToSensorList(SensorType.TOUCH_SENSOR, NXTSensorPin.PIN_1, SENSOR_POLL_RATE);
+		createAndAddSensorToSensorList(SensorType.TOUCH_SENSOR, NXTSensorPin.PIN_1,
+				SENSOR_POLL_RATE, SENSOR_POLL_CEILING);
 	}
 	
-	private void createAndAddSensorToSensorList(SensorType type, NXTSensorPin pin, int period) {
+	private void createAndAddSensorToSensorList(SensorType type, NXTSensorPin pin, int floor,
+			int ceiling) {
 		Sensor sensor = nxt.createSensor(type, pin);
-		sensor.getSensorTask().setPeriod(period);
 		if (sensor != null) {
+			sensor.setAdaptivePolling(floor, ceiling);
 			sensors.add(sensor);
 		}
 	}
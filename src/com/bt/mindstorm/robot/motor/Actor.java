@@ -1,7 +1,7 @@
 package com.bt.mindstorm.robot.motor;
 
-import android.os.Bundle;
-import android.os.Message;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.bt.BluetoothChannel;
 import com.bt.mindstorm.ActorPin;
 import com.bt.mindstorm.nxt.NXT;
@@ -11,6 +11,22 @@ public class Actor {
 	private ActorPin pin;
 	private BluetoothChannel connector;
 	private int delay;
+	// speed waiting for the communication delay to pass, the latest one wins,
+	// in the low half, the brake count it was set at in the high half
+	private volatile long delayedSpeed;
+	private final AtomicBoolean delayedPending = new AtomicBoolean(false);
+	private final Runnable delayedSpeedTask = new Runnable() {
+		@Override
+		public void run() {
+			delayedPending.set(false);
+			long delayed = delayedSpeed;
+			if ((int) (delayed >>> 32) != connector.getBrakeCount()) {
+				// braked meanwhile, the speed must not restart the motor
+				return;
+			}
+			connector.changeMotorSpeed(pin.getPinNr(), (int) delayed);
+		}
+	};
 
 	public Actor(NXT nxt, ActorPin pin, int delay) {
 		this.pin = pin;
@@ -23,23 +39,24 @@ public class Actor {
 	 * motor.
 	 * 
 	 * @param speed
+	 * @return true if the speed is queued or held back for the communication
+	 *         delay, false if it has been dropped
 	 */
-	public void setSpeed(int val) throws IllegalArgumentException {
+	public boolean setSpeed(int val) throws IllegalArgumentException {
 		if ((val > SPEED_LIMIT) || (val < -SPEED_LIMIT)) {
 			throw new IllegalArgumentException(
 					"speed must be within the range [-100,100]");
 		}
-		Message msg = Message.obtain();
-		Bundle msgBundle = new Bundle();
-		msgBundle.putInt("action", NXT.MOTOR_SPEED);
-		msgBundle.putInt("actor", pin.getPinNr());
-		msgBundle.putInt("value", val);
-		msg.setData(msgBundle);
-
 		if (delay == 0) {
-			connector.getBluetoothMessageHandler().sendMessage(msg);
+			// queue directly, the bluetooth writer thread does the I/O
+			return connector.changeMotorSpeed(pin.getPinNr(), val);
 		} else {
-			connector.getBluetoothMessageHandler().sendMessageDelayed(msg, delay);
+			// at most one delayed command per actor, a newer speed replaces the waiting one
+			delayedSpeed = (long) connector.getBrakeCount() << 32 | (val & 0xFFFFFFFFL);
+			if (delayedPending.compareAndSet(false, true)) {
+				connector.getBluetoothMessageHandler().postDelayed(delayedSpeedTask, delay);
+			}
+			return true;
 		}
 
 	}
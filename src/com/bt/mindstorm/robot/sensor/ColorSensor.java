@@ -15,8 +15,8 @@
  */
 package com.bt.mindstorm.robot.sensor;
 
-import android.os.Message;
 import com.bt.mindstorm.SensorPin;
+import com.bt.mindstorm.nxt.InputValues;
 import com.bt.mindstorm.nxt.NXT;
 
 /**
@@ -49,7 +49,8 @@ public class ColorSensor extends Sensor {
 	// RAW mode
 	private static byte NXT_SENSOR_MODE = 0x00;
 	// actual state
-	private Color color;
+	private volatile Color color;
+	private volatile int colorNumber;
 
 	public ColorSensor(NXT nxt, SensorPin pin) {
 		super(nxt, pin);
@@ -66,18 +67,26 @@ public class ColorSensor extends Sensor {
 	}
 
 	@Override
-	public void handleLegoBrickMessage(Message message) {
-		if (message.getData().getByte("sensortype") == NXT_SENSOR_TYPE) {
-			short value = message.getData().getShort("value");
-			
-			byte val = (byte) (value >> 8);
-			if ((val<1) || (val > Color.values().length-1)) {
-				color = Color.UNDEFINED;
-			} else {
-				color = Color.values()[val-1];
-			}
-//			Log.d(TAG, "Color: " + color.getName() + " (" + value + ")");
+	protected void onReading(InputValues values) {
+		short value = values.getScaledValue();
+		colorNumber = value;
+		Color previous = color;
+		if ((value<1) || (value > Color.values().length-1)) {
+			color = Color.UNDEFINED;
+		} else {
+			color = Color.values()[value-1];
 		}
+		readingReceived(color != previous);
+//		Log.d(TAG, "Color: " + color.getName() + " (" + value + ")");
+	}
+
+	/**
+	 * Returns the color number reported by the sensor, 1 (black) to 6 (white).
+	 * 
+	 * @return color number, 0 if not read yet
+	 */
+	public int getColorNumber() {
+		return colorNumber;
 	}
 
 	@Override
@@ -15,8 +15,8 @@
  */
 package com.bt.mindstorm.robot.sensor;
 
-import android.os.Message;
 import com.bt.mindstorm.SensorPin;
+import com.bt.mindstorm.nxt.InputValues;
 import com.bt.mindstorm.nxt.NXT;
 
 /**
@@ -28,8 +28,14 @@ public class LightSensor extends Sensor {
 	private static byte NXT_SENSOR_TYPE = (byte) 0x05;
 	// RAW mode
 	private static byte NXT_SENSOR_MODE = (byte) 0x00;
+	// readings differing by less are regarded as unchanged
+	private static final int CHANGE_TOLERANCE = 2;
+	// full scale of the A/D converter
+	private static final int FULL_SCALE = 1023;
 	// actual sensor value
-	private short value;
+	private volatile short value;
+	private volatile int rawValue;
+	private volatile int normalizedValue;
 
 	/**
 	 * @param nxt
@@ -50,10 +56,41 @@ public class LightSensor extends Sensor {
 	}
 
 	@Override
-	public void handleLegoBrickMessage(Message message) {
-		if (message.getData().getByte("sensortype") == NXT_SENSOR_TYPE) {
-			value = message.getData().getShort("value");
-		}
+	protected void onReading(InputValues values) {
+		short previous = value;
+		rawValue = values.getRawValue();
+		normalizedValue = values.getNormalizedValue();
+		value = values.getScaledValue();
+		readingReceived(Math.abs(value - previous) > CHANGE_TOLERANCE);
+	}
+
+	/**
+	 * Returns the raw A/D value of the last reading.
+	 * 
+	 * @return raw value within [0, 1023]
+	 */
+	public int getRawValue() {
+		return rawValue;
+	}
+
+	/**
+	 * Returns the normalized value of the last reading, brighter light gives
+	 * higher values.
+	 * 
+	 * @return normalized value within [0, 1023]
+	 */
+	public int getNormalizedValue() {
+		return normalizedValue;
+	}
+
+	/**
+	 * Returns the light level as percentage of full scale, as the brick would
+	 * report it in percent mode.
+	 * 
+	 * @return light level within [0, 100]
+	 */
+	public int getPercent() {
+		return normalizedValue * 100 / FULL_SCALE;
 	}
 
 	@Override
@@ -18,27 +18,43 @@ package com.bt.mindstorm.robot.sensor;
 import android.os.Bundle;
 import android.os.Message;
 import com.bt.BluetoothChannel;
-import com.bt.mindstorm.LegoBrickSensorListener;
+import com.bt.mindstorm.LegoBrickEventListener;
 import com.bt.mindstorm.SensorPin;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
 import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.OutputState;
 import com.bt.mindstorm.robot.SensorTask;
 
 /**
  * Abstract class which implements the basic functionalities of a sensor.
- * Each sensor must extend this abstract classes.
+ * Each sensor must extend this abstract classes and override the event
+ * handlers for the replies it is interested in.
  * 
  * @author Juerg Luthiger
  *
  */
-public abstract class Sensor implements LegoBrickSensorListener {
+public abstract class Sensor implements LegoBrickEventListener {
+	/**
+	 * Number of unchanged readings after which an adaptive sensor doubles its
+	 * poll period.
+	 */
+	public static final int STABLE_READINGS = 5;
+
 	protected SensorPin pin;
 	protected SensorTask task;
 	protected BluetoothChannel connector;
+	// adaptive polling is off while the ceiling is 0
+	private volatile long floorPeriod = 0;
+	private volatile long ceilingPeriod = 0;
+	private int stableReadings = 0;
+	private volatile SensorDataListener dataListener;
 
 	public Sensor(NXT nxt, SensorPin pin) {
 		this.pin = pin;
 		connector = nxt.getBluetoothConnector();
-		nxt.addSensorListener(this);
+		// only the replies for the own pin are delivered
+		nxt.addEventListener(pin, this);
 	}
 
 	/**
@@ -53,11 +69,145 @@ public abstract class Sensor implements LegoBrickSensorListener {
 		return pin;
 	}
 
+	/**
+	 * Polls the sensor adaptively: the poll period backs off towards the
+	 * ceiling while the readings stay the same, and returns to the floor as
+	 * soon as they change or {@linkplain #pollFaster()} is called.
+	 * 
+	 * @param floor
+	 *            shortest poll period in milliseconds
+	 * @param ceiling
+	 *            longest poll period in milliseconds
+	 */
+	public void setAdaptivePolling(long floor, long ceiling) {
+		if (floor <= 0 || ceiling < floor) {
+			throw new IllegalArgumentException("floor must be positive and not above ceiling");
+		}
+		floorPeriod = floor;
+		ceilingPeriod = ceiling;
+		stableReadings = 0;
+		getSensorTask().setPeriod(floor);
+	}
+
+	/**
+	 * Polls the sensor at a fixed period, turns adaptive polling off.
+	 * 
+	 * @param period
+	 *            poll period in milliseconds
+	 */
+	public void setFixedPolling(long period) {
+		ceilingPeriod = 0;
+		getSensorTask().setPeriod(period);
+	}
+
+	public boolean isAdaptivePolling() {
+		return ceilingPeriod > 0;
+	}
+
+	/**
+	 * Returns an adaptive sensor to its floor period, e.g. when the robot
+	 * speeds up. Has no effect on a sensor polled at a fixed period.
+	 */
+	public void pollFaster() {
+		if (ceilingPeriod > 0) {
+			stableReadings = 0;
+			getSensorTask().setPeriod(floorPeriod);
+		}
+	}
+
+	/**
+	 * Must be called by the derived sensors for every reading, adapts the
+	 * poll period if adaptive polling is on.
+	 * 
+	 * @param changed
+	 *            whether the reading differs from the previous one
+	 */
+	protected void readingReceived(boolean changed) {
+		long ceiling = ceilingPeriod;
+		if (ceiling == 0) {
+			return;
+		}
+		SensorTask sensorTask = getSensorTask();
+		if (changed) {
+			stableReadings = 0;
+			sensorTask.setPeriod(floorPeriod);
+		} else if (++stableReadings >= STABLE_READINGS) {
+			stableReadings = 0;
+			sensorTask.setPeriod(Math.min(sensorTask.getPeriod() * 2, ceiling));
+		}
+	}
+
 	public abstract byte getSensorType();
 
 	public abstract byte getSensorMode();
-	
-	public abstract void handleLegoBrickMessage(Message message);
+
+	/**
+	 * Skips the readings the brick marks invalid, e.g. right after the input
+	 * mode has been set, and readings of another sensor type. Valid readings
+	 * are passed to {@linkplain #onReading(InputValues)}.
+	 */
+	@Override
+	public final void onInputValues(InputValues values) {
+		if (values.isValid() && values.getSensorType() == getSensorType()) {
+			onReading(values);
+			sensorDataReceived(values.getReceivedNanos());
+		}
+	}
+
+	/**
+	 * Sets the listener informed about every new reading.
+	 * 
+	 * @param listener
+	 *            the listener or null
+	 */
+	public void setSensorDataListener(SensorDataListener listener) {
+		dataListener = listener;
+	}
+
+	/**
+	 * Must be called by sensors not read through
+	 * {@linkplain #onReading(InputValues)} once their state is updated.
+	 * 
+	 * @param receivedNanos
+	 *            time the reply was received, as {@linkplain System#nanoTime()}
+	 */
+	protected void sensorDataReceived(long receivedNanos) {
+		SensorDataListener listener = dataListener;
+		if (listener != null) {
+			listener.onSensorData(this, receivedNanos);
+		}
+	}
+
+	/**
+	 * Handles a valid reading of this sensor. The reading carries the raw,
+	 * normalized, scaled and calibrated values at once, so every
+	 * representation can be derived from it without changing the sensor mode.
+	 * 
+	 * @param values
+	 *            the reading
+	 */
+	protected void onReading(InputValues values) {
+	}
+
+	@Override
+	public void onOutputState(OutputState state) {
+	}
+
+	@Override
+	public void onLowSpeedStatus(LowSpeedReply reply) {
+	}
+
+	@Override
+	public void onLowSpeedWrite(LowSpeedReply reply) {
+	}
+
+	@Override
+	public void onLowSpeedRead(LowSpeedReply reply) {
+	}
+
+	@Override
+	public void onConnectionStateChanged(int state, String text) {
+	}
 
 	/**
 	 * Creates message, used by the bluetooth channel, to activate the sensor.
@@ -75,26 +225,13 @@ public abstract class Sensor implements LegoBrickSensorListener {
 		return msg;
 	}
 
-	/**
-	 * Creates message, used by the bluetooth channel, to read out the sensor.
-	 * 
-	 * @return the message itself
-	 */
-	protected Message createReadMessage() {
-		Message msg = Message.obtain();
-		Bundle msgBundle = new Bundle();
-		msgBundle.putInt("action", NXT.READ_SENSOR_STATE);
-		msgBundle.putByte("inputPort", pin.getPinNr());
-		msg.setData(msgBundle);
-		return msg;
-	}
-	
 	class SensorPollTask implements SensorTask {
-		private long period;
+		// read by the poll scheduler, changed by adaptive polling
+		private volatile long period;
 		
 		@Override
 		public void run() {
-			connector.getBluetoothMessageHandler().sendMessage(createReadMessage());
+			connector.readSensorState(pin.getPinNr());
 		}
 
 		@Override
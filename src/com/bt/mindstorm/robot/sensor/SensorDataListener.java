@@ -0,0 +1,31 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt.mindstorm.robot.sensor;
+
+/**
+ * Listener informed whenever a sensor has taken a new reading.
+ */
+public interface SensorDataListener {
+	/**
+	 * Called after the sensor has updated its state.
+	 * 
+	 * @param sensor
+	 *            the sensor
+	 * @param receivedNanos
+	 *            time the reply was received, as {@linkplain System#nanoTime()}
+	 */
+	void onSensorData(Sensor sensor, long receivedNanos);
+}
@@ -15,8 +15,8 @@
  */
 package com.bt.mindstorm.robot.sensor;
 
-import android.os.Message;
 import com.bt.mindstorm.SensorPin;
+import com.bt.mindstorm.nxt.InputValues;
 import com.bt.mindstorm.nxt.NXT;
 
 /**
@@ -31,7 +31,8 @@ public class TouchSensor extends Sensor {
 	// BOOLEAN mode
 	private static byte NXT_SENSOR_MODE = 0x20;
 	// actual state
-	private boolean touched;
+	private volatile boolean touched;
+	private volatile int rawValue;
 
 	public TouchSensor(NXT nxt, SensorPin pin) {
 		super(nxt, pin);
@@ -49,11 +50,22 @@ public class TouchSensor extends Sensor {
 	}
 
 	@Override
-	public void handleLegoBrickMessage(Message message) {
-		if (message.getData().getByte("sensortype")==NXT_SENSOR_TYPE) {
-			int value = message.getData().getShort("value");
-			touched = (value > 0) ? true : false;
-		}
+	protected void onReading(InputValues values) {
+		int value = values.getScaledValue();
+		boolean previous = touched;
+		rawValue = values.getRawValue();
+		touched = (value > 0) ? true : false;
+		readingReceived(touched != previous);
+	}
+
+	/**
+	 * Returns the raw A/D value of the last reading, it drops from about 1023
+	 * towards 180 the further the switch is pressed.
+	 * 
+	 * @return raw value within [0, 1023]
+	 */
+	public int getRawValue() {
+		return rawValue;
 	}
 
 	@Override
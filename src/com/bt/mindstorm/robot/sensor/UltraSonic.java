@@ -3,31 +3,76 @@
  */
 package com.bt.mindstorm.robot.sensor;
 
-import android.os.Bundle;
-import android.os.Message;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.util.Log;
+import com.bt.ReplyFuture;
 import com.bt.mindstorm.SensorPin;
+import com.bt.mindstorm.nxt.EventDelivery;
+import com.bt.mindstorm.nxt.LowSpeedBus;
 import com.bt.mindstorm.nxt.NXT;
 import com.bt.mindstorm.robot.SensorTask;
 
 /**
+ * Ultrasonic distance sensor, connected over the low speed (I2C) bus.
+ * <p/>
+ * All transactions go through the {@link LowSpeedBus} of the pin, which
+ * executes them one after the other and reports failed ones. A poll is skipped
+ * while the previous one is still in progress. In continuous mode, the default,
+ * the sensor is told once to measure continuously. Every poll then reads the
+ * echoes requested by the previous poll and requests the next ones in the same
+ * burst, two requests per reading. In single shot mode every poll triggers a
+ * measurement and reads it in a full transaction.
+ * <p/>
+ * If no reading arrives within {@linkplain #RECOVERY_TIMEOUT}, or three poll
+ * periods if that is longer, e.g. because a transaction hangs, the acquisition
+ * starts over. A failed transaction starts it over as well.
+ * 
  * @author luthiger
  * 
  */
 public class UltraSonic extends Sensor {
 	private static final String TAG = "UltraSonic";
+	/**
+	 * Time without reading after which the acquisition starts over, in
+	 * milliseconds.
+	 */
+	public static final long RECOVERY_TIMEOUT = 1000;
 
 	// LOWSPEED sensor
 	private static byte NXT_SENSOR_TYPE = (byte) 0x0B;
 	// RAW mode
 	private static byte NXT_SENSOR_MODE = (byte) 0x00;
+	/**
+	 * Maximum number of echoes the sensor reports.
+	 */
+	public static final int MAX_ECHOES = 8;
+	private static final int ADDRESS = 0x02;
+	// register of the first echo
+	private static final int FIRST_ECHO = 0x42;
+	// sensor address, command register, continuous measurement
+	private static final byte[] CONTINUOUS_MEASUREMENT = { 0x02, 0x41, 0x02 };
+	// sensor address, command register, single shot
+	private static final byte[] SINGLE_SHOT = { 0x02, 0x41, 0x01 };
+	// sensor address, register of the first echo
+	private static final byte[] ECHO_REQUEST = { ADDRESS, FIRST_ECHO };
 
-	private LsCommunicationState lsCommunicationState = LsCommunicationState.READY;
+	private final LowSpeedBus bus;
+	private final EventDelivery delivery;
+	private volatile boolean continuous = true;
 
-	protected short distance = -1;
+	protected volatile short distance = -1;
+	// distances of all echoes read, nearest first
+	private volatile short[] distances = new short[] { -1 };
+	private volatile int echoes = 1;
+	private final AtomicLong failedReadings = new AtomicLong();
 
 	public UltraSonic(NXT nxt, SensorPin pin) {
 		super(nxt, pin);
+		bus = nxt.getLowSpeedBus(pin);
+		delivery = nxt.getEventDelivery();
 	}
 
 	@Override
@@ -40,30 +85,78 @@ public class UltraSonic extends Sensor {
 		return NXT_SENSOR_MODE;
 	}
 
-	@Override
-	public void handleLegoBrickMessage(Message message) {
-		switch (message.getData().getInt("message")) {
-		case NXT.LSWRITE:
-			((UltraSonicPollTask) task).switchState(LsCommunicationState.WAITING_FOR_RESULT);
-			break;
-		case NXT.LSSTATUS:
-			byte bytesReady = message.getData().getByte("bytesReady");
-			if (bytesReady > 0) {
-				// bytes are ready to be read
-				((UltraSonicPollTask) task).switchState(LsCommunicationState.READING);
-			}
-			break;
-		case NXT.LSREAD:
-			byte status = message.getData().getByte("status");
-			byte length = message.getData().getByte("bytesRead");
-			if ((status==0) && (length>0)) {
-				distance = message.getData().getByte("data");
-			} else {
-				distance = -1;
-			}
-			Log.i(TAG, "distance is " + distance + " cm");
-			((UltraSonicPollTask) task).switchState(LsCommunicationState.READY);
+	/**
+	 * Switches between continuous and single shot measurement.
+	 * 
+	 * @param continuous
+	 *            true for continuous measurement
+	 */
+	public void setContinuous(boolean continuous) {
+		this.continuous = continuous;
+		reset();
+	}
+
+	public boolean isContinuous() {
+		return continuous;
+	}
+
+	/**
+	 * Sets the number of echoes read per measurement. All of them are read in
+	 * one transaction.
+	 * 
+	 * @param echoes
+	 *            number of echoes within [1, {@linkplain #MAX_ECHOES}]
+	 */
+	public void setEchoes(int echoes) {
+		if (echoes < 1 || echoes > MAX_ECHOES) {
+			throw new IllegalArgumentException("echoes must be within [1, " + MAX_ECHOES + "]");
+		}
+		this.echoes = echoes;
+	}
+
+	public int getEchoes() {
+		return echoes;
+	}
+
+	/**
+	 * Returns the distances of the echoes of the last measurement, nearest
+	 * first. The distance of an echo not received is 255.
+	 * 
+	 * @return distances in cm
+	 */
+	public short[] getDistances() {
+		return distances.clone();
+	}
+
+	/**
+	 * Returns the number of transactions that failed, e.g. timed out or were
+	 * rejected because too many requests were in flight.
+	 * 
+	 * @return failed readings
+	 */
+	public long getFailedReadings() {
+		return failedReadings.get();
+	}
+
+	/**
+	 * Handles the echoes read from the sensor, called on the event delivery
+	 * thread.
+	 * 
+	 * @param echoDistances
+	 *            the echo registers, nearest first
+	 * @param receivedNanos
+	 *            time the reply was received, as {@linkplain System#nanoTime()}
+	 */
+	void echoesReceived(byte[] echoDistances, long receivedNanos) {
+		short previous = distance;
+		short[] read = new short[echoDistances.length];
+		for (int i = 0; i < read.length; i++) {
+			read[i] = (short) (echoDistances[i] & 0xFF);
 		}
+		distances = read;
+		distance = read[0];
+		readingReceived(distance != previous);
+		sensorDataReceived(receivedNanos);
 	}
 
 	@Override
@@ -73,7 +166,7 @@ public class UltraSonic extends Sensor {
 
 	@Override
 	public void reset() {
-
+		((UltraSonicPollTask) getSensorTask()).restart();
 	}
 	
 	@Override
@@ -84,63 +177,105 @@ public class UltraSonic extends Sensor {
 		return task;
 	}
 
-	enum LsCommunicationState {
-		READY, WAITING_FOR_RESULT, READING
-	}
-
 	class UltraSonicPollTask implements SensorTask {
-		private long period;
-		
+		private volatile long period;
+		// continuous measurement has been requested from the sensor
+		private volatile boolean measuring = false;
+		// a poll is in progress on the bus
+		private final AtomicBoolean busy = new AtomicBoolean(false);
+		private volatile long lastProgress = System.currentTimeMillis();
+
+		// completed on the reader thread, the reading is handled on the event
+		// delivery thread like the replies of the other sensors
+		private final ReplyFuture.Listener<byte[]> readListener = new ReplyFuture.Listener<byte[]>() {
+			@Override
+			public void onReply(final byte[] value) {
+				final long receivedNanos = System.nanoTime();
+				busy.set(false);
+				if (value.length == 0) {
+					// the first request of the pipeline, nothing read yet
+					return;
+				}
+				lastProgress = System.currentTimeMillis();
+				Executor executor = delivery.getExecutor();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						echoesReceived(value, receivedNanos);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				failed(failure);
+			}
+		};
+
+		// the read following a single shot trigger still completes the poll
+		private final ReplyFuture.Listener<byte[]> triggerListener = new ReplyFuture.Listener<byte[]>() {
+			@Override
+			public void onReply(byte[] value) {
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				failedReadings.incrementAndGet();
+				Log.w(TAG, "single shot trigger failed: " + failure.getMessage());
+			}
+		};
+
+		private final ReplyFuture.Listener<byte[]> modeListener = new ReplyFuture.Listener<byte[]>() {
+			@Override
+			public void onReply(byte[] value) {
+				busy.set(false);
+			}
+
+			@Override
+			public void onFailure(Throwable failure) {
+				failed(failure);
+			}
+		};
+
 		@Override
 		public void run() {
-			switch (lsCommunicationState) {
-			case READY:
-				// Start read cycle using LSWRITE
-				connector.getBluetoothMessageHandler().sendMessage(createLSWriteMessage());
-				break;
-			case WAITING_FOR_RESULT:
-				// Wait for the result using LSSTATUS
-				connector.getBluetoothMessageHandler().sendMessage(createLSStatusMessage());
-				break;
-			case READING:
-				// Read result using LSREAD
-				connector.getBluetoothMessageHandler().sendMessage(createLSReadMessage());
-				break;
-			default:
-				break;
+			// a long poll period must not be taken for a lost reply
+			long timeout = Math.max(RECOVERY_TIMEOUT, 3 * period);
+			if (System.currentTimeMillis() - lastProgress > timeout) {
+				Log.w(TAG, "no reading within " + timeout + " ms, starting over");
+				restart();
 			}
+			if (!busy.compareAndSet(false, true)) {
+				// the previous poll is still on the bus
+				return;
+			}
+			if (continuous && !measuring) {
+				measuring = true;
+				bus.write(CONTINUOUS_MEASUREMENT).setListener(modeListener);
+				return;
+			}
+			if (continuous) {
+				// read the previous echoes, the next ones are requested right behind
+				bus.readAndRequest(ECHO_REQUEST, echoes).setListener(readListener);
+				return;
+			}
+			// the bus executes the transactions of the pin in order
+			bus.write(SINGLE_SHOT).setListener(triggerListener);
+			bus.readRegisters(ADDRESS, FIRST_ECHO, echoes).setListener(readListener);
 		}
 
-		public void switchState(LsCommunicationState newState) {
-			lsCommunicationState = newState;
-			Log.d(TAG, "LsCommunicationState set to " + newState);
-		}
-
-		private Message createLSStatusMessage() {
-			Message msg = Message.obtain();
-			Bundle msgBundle = new Bundle();
-			msgBundle.putInt("action", NXT.LSSTATUS);
-			msgBundle.putByte("inputPort", pin.getPinNr());
-			msg.setData(msgBundle);
-			return msg;
+		private void failed(Throwable failure) {
+			failedReadings.incrementAndGet();
+			Log.w(TAG, "low speed transaction failed: " + failure.getMessage());
+			// the sensor may have lost its mode, e.g. after a power drop
+			measuring = false;
+			busy.set(false);
 		}
 
-		private Message createLSWriteMessage() {
-			Message msg = Message.obtain();
-			Bundle msgBundle = new Bundle();
-			msgBundle.putInt("action", NXT.LSWRITE);
-			msgBundle.putByte("inputPort", pin.getPinNr());
-			msg.setData(msgBundle);
-			return msg;
-		}
-		
-		private Message createLSReadMessage() {
-			Message msg = Message.obtain();
-			Bundle msgBundle = new Bundle();
-			msgBundle.putInt("action", NXT.LSREAD);
-			msgBundle.putByte("inputPort", pin.getPinNr());
-			msg.setData(msgBundle);
-			return msg;
+		void restart() {
+			measuring = false;
+			busy.set(false);
+			lastProgress = System.currentTimeMillis();
 		}
 
 		@Override
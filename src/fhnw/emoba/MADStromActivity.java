@@ -2,8 +2,12 @@ package fhnw.emoba;
 
 import com.bt.BluetoothChannel;
 import com.bt.DeviceListActivity;
-import com.bt.mindstorm.LegoBrickSensorListener;
+import com.bt.mindstorm.LegoBrickEventListener;
+import com.bt.mindstorm.nxt.InputValues;
+import com.bt.mindstorm.nxt.LowSpeedReply;
 import com.bt.mindstorm.nxt.NXT;
+import com.bt.mindstorm.nxt.NXTEmulator;
+import com.bt.mindstorm.nxt.OutputState;
 import com.bt.mindstorm.robot.Robot;
 import com.bt.mindstorm.robot.model.NXTCastorBot;
 import com.bt.mindstorm.robot.model.NXTMADbot;
@@ -16,7 +20,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Message;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -31,7 +34,7 @@ import android.widget.Toast;
 import android.widget.ToggleButton;
 import android.widget.ViewFlipper;
 
-public class MADStromActivity extends Activity implements LegoBrickSensorListener{
+public class MADStromActivity extends Activity implements LegoBrickEventListener{
 	//Flag indicating if application is running in a emulator
 	//emulator implicates no Bluetooth
 	private boolean onEmulator;
@@ -275,7 +278,7 @@ public class MADStromActivity extends Activity implements LegoBrickSensorListene
 		           //Connect to Bluetooth Channel with received device MAC address:
 		           //Instantiate NXT brick and register activity as lego brick listener
 		           nxt = new NXT();
-		           nxt.addSensorListener(this);
+		           nxt.addEventListener(this);
 		           nxt.connectAndStart(address);
 		           //flips to connect view
 		           mFlipper.showNext();
@@ -286,10 +289,12 @@ public class MADStromActivity extends Activity implements LegoBrickSensorListene
 	}
 
 	private void setEmulationSetup() {
-		// TODO ASK Luthiger what this method actually should do
-		
-		
-		
+		// no bluetooth on the emulator, talk to a brick emulated in process instead
+		nxt = new NXT();
+		nxt.addEventListener(this);
+		nxt.connectAndStart(new NXTEmulator());
+		//flips to connect view
+		mFlipper.showNext();
 	}
 
 	/**
@@ -321,15 +326,26 @@ public class MADStromActivity extends Activity implements LegoBrickSensorListene
 
 	/**
 	 * Callback method from the NXT Lego brick for handling specific events
-	 * from the NXT brick
-	 * @param message
+	 * from the NXT brick. Events are delivered on a background thread, so
+	 * they are handled on the UI thread.
+	 * @param state
+	 * @param text
 	 */
 	@Override
-	public void handleLegoBrickMessage(Message message) {
-		switch (message.getData().getInt("message")) {
+	public void onConnectionStateChanged(final int state, final String text) {
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				handleConnectionState(state, text);
+			}
+		});
+	}
+
+	private void handleConnectionState(int state, String text) {
+		switch (state) {
 		case BluetoothChannel.DISPLAY_TOAST:
-			Toast.makeText(this.getApplicationContext(),message.getData().getString("toastText"), Toast.LENGTH_SHORT).show();
-			displayToast(message.getData().getString("toastText"));
+			Toast.makeText(this.getApplicationContext(),text, Toast.LENGTH_SHORT).show();
+			displayToast(text);
 			break;
 		case BluetoothChannel.STATE_CONNECTERROR:
 			Log.v(TAG, "Lost connection to robot");
@@ -367,6 +383,29 @@ public class MADStromActivity extends Activity implements LegoBrickSensorListene
 		}
 		
 	}
+
+	/**
+	 * Sensor and motor replies are handled by the robot itself
+	 */
+	@Override
+	public void onInputValues(InputValues values) {
+	}
+
+	@Override
+	public void onOutputState(OutputState state) {
+	}
+
+	@Override
+	public void onLowSpeedStatus(LowSpeedReply reply) {
+	}
+
+	@Override
+	public void onLowSpeedWrite(LowSpeedReply reply) {
+	}
+
+	@Override
+	public void onLowSpeedRead(LowSpeedReply reply) {
+	}
 	
 	/**
 	 * Helper method to show Toast Messages as Toasts can only be displayed
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RequestTimesTest {
+	private static final int GETINPUTVALUES = 0x07;
+	private static final long MILLIS = 1000000L;
+
+	private final RequestTimes times = new RequestTimes();
+
+	@Test
+	public void repliesMatchTheRequestsInOrder() {
+		times.sent(GETINPUTVALUES, 10 * MILLIS);
+		times.sent(GETINPUTVALUES, 20 * MILLIS);
+		assertEquals(10 * MILLIS, times.replied(GETINPUTVALUES, 30 * MILLIS));
+		assertEquals(20 * MILLIS, times.replied(GETINPUTVALUES, 40 * MILLIS));
+		assertEquals(RequestTimes.NONE, times.replied(GETINPUTVALUES, 50 * MILLIS));
+	}
+
+	@Test
+	public void lostRequestsExpire() {
+		times.sent(GETINPUTVALUES, 0);
+		long later = 2 * RequestTimes.EXPIRY_MILLIS * MILLIS;
+		times.sent(GETINPUTVALUES, later);
+		// the reply belongs to the second request, the first one was lost
+		assertEquals(later, times.replied(GETINPUTVALUES, later + 5 * MILLIS));
+		assertEquals(RequestTimes.NONE, times.replied(GETINPUTVALUES, later + 10 * MILLIS));
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TelegramRingTest {
+	private static final byte[] FIRST = { 0x00, 0x07, 0x00 };
+	private static final byte[] SECOND = { 0x00, 0x07, 0x01 };
+
+	private final TelegramRing ring = new TelegramRing(8);
+	private final byte[] batch = new byte[8 * TelegramRing.SLOT_SIZE];
+
+	@Test
+	public void pollTakesNothingOfAHeldGroup() {
+		ring.hold();
+		assertTrue(ring.offer(FIRST));
+		assertEquals(0, ring.poll(batch, 0, System.currentTimeMillis() + 20));
+		assertTrue(ring.offer(SECOND));
+		assertEquals(0, ring.poll(batch, 0, System.currentTimeMillis()));
+		ring.release();
+		assertEquals(FIRST.length + 2, ring.poll(batch, 0, System.currentTimeMillis()));
+		assertEquals(SECOND.length + 2,
+				ring.poll(batch, FIRST.length + 2, System.currentTimeMillis()));
+		assertEquals(0x01, batch[FIRST.length + 2 + 4]);
+	}
+
+	@Test
+	public void pollWaitsForTheRelease() throws InterruptedException {
+		ring.hold();
+		ring.offer(FIRST);
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+				ring.release();
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		assertEquals(FIRST.length + 2, ring.poll(batch, 0, start + 2 * TelegramRing.MAX_HOLD_MILLIS));
+		// woken by the release, not by the hold running out
+		assertTrue(System.currentTimeMillis() - start < TelegramRing.MAX_HOLD_MILLIS);
+		releaser.join();
+	}
+
+	@Test
+	public void pollTakesUrgentTelegramsOfAHeldRing() {
+		ring.hold();
+		ring.offer(FIRST);
+		ByteBuffer slot = ring.claimPriority();
+		BluetoothMessage.putBrakeMessage(slot, 1);
+		ring.commitPriority();
+		assertEquals(slot.position(), ring.poll(batch, 0, System.currentTimeMillis()));
+		assertEquals(0, ring.poll(batch, 0, System.currentTimeMillis()));
+		ring.release();
+	}
+}